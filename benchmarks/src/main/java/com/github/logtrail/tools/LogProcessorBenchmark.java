@@ -0,0 +1,129 @@
+package com.github.logtrail.tools;
+
+import com.github.logtrail.tools.benchmarks.SyntheticPatterns;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * LogProcessor matching against synthetic pattern sets, all in one context, with messages that
+ * match a pattern (hit) and messages that do not match any pattern (miss), through the map API and
+ * with a reused MatchResult. Run with -prof gc to compare allocation rates. Skewed messages come from a
+ * few hot templates most of the time, with reorder the patterns are ordered by hits before measuring.
+ * hitBatch processes all the hit messages in one batch, its time is per message. The miss messages repeat,
+ * so with a negative cache most misses are found in the cache.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LogProcessorBenchmark {
+    private static final String CONTEXT = "com.example.generated.Service";
+    private static final int CORPUS_SIZE = 1024;
+
+    @Param({"100", "10000", "100000"})
+    private int patternCount;
+
+    @Param({"false", "true"})
+    private boolean reorder;
+
+    @Param({"0", "4096"})
+    private int negativeCacheSize;
+
+    private LogProcessor logProcessor;
+    private String[] hits, misses, skewed, contexts;
+    private final MatchResult result = new MatchResult();
+    private int index = 0;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        List<String> templates = new ArrayList<>(patternCount);
+        List<LogProcessor.LogPattern> logPatterns = new ArrayList<>(patternCount);
+        for (int i = 0; i < patternCount; i++) {
+            String template = SyntheticPatterns.template(random, random.nextInt(4));
+            templates.add(template);
+            LogProcessor.LogPattern logPattern = new LogProcessor.LogPattern();
+            logPattern.setId(String.valueOf(i));
+            logPattern.setContext(CONTEXT);
+            logPattern.setMessageRegEx(SyntheticPatterns.toRegEx(template));
+            List<String> fields = new ArrayList<>();
+            for (int arg = 1; arg <= 3; arg++) {
+                fields.add("Service_arg" + arg);
+            }
+            logPattern.setFields(fields);
+            logPatterns.add(logPattern);
+        }
+        Properties properties = new Properties();
+        //reordered explicitly
+        properties.setProperty("patterns.reorder.interval.millis", "0");
+        properties.setProperty("cache.negative.size", String.valueOf(negativeCacheSize));
+        logProcessor = new LogProcessor(new String[]{"http://localhost:9200"}, null, properties);
+        logProcessor.init(logPatterns);
+
+        hits = new String[CORPUS_SIZE];
+        misses = new String[CORPUS_SIZE];
+        for (int i = 0; i < CORPUS_SIZE; i++) {
+            String message = SyntheticPatterns.message(random, templates.get(random.nextInt(patternCount)));
+            hits[i] = message;
+            misses[i] = message + " (unmatched)";
+        }
+        contexts = new String[CORPUS_SIZE];
+        Arrays.fill(contexts, CONTEXT);
+        skewed = new String[CORPUS_SIZE];
+        for (int i = 0; i < CORPUS_SIZE; i++) {
+            int template = random.nextInt(10) < 9 ? random.nextInt(10) : random.nextInt(patternCount);
+            skewed[i] = SyntheticPatterns.message(random, templates.get(template));
+        }
+        if (reorder) {
+            for (String message : skewed) {
+                logProcessor.process(message, CONTEXT);
+            }
+            logProcessor.reorder();
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        logProcessor.cleanup();
+    }
+
+    @Benchmark
+    public Map<String, Object> hit() {
+        return logProcessor.process(hits[index++ & (CORPUS_SIZE - 1)], CONTEXT);
+    }
+
+    @Benchmark
+    public Map<String, Object> miss() {
+        return logProcessor.process(misses[index++ & (CORPUS_SIZE - 1)], CONTEXT);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(CORPUS_SIZE)
+    public List<Map<String, Object>> hitBatch() {
+        return logProcessor.processBatch(hits, contexts);
+    }
+
+    @Benchmark
+    public Map<String, Object> skewedHit() {
+        return logProcessor.process(skewed[index++ & (CORPUS_SIZE - 1)], CONTEXT);
+    }
+
+    @Benchmark
+    public boolean hitReused() {
+        return logProcessor.process(hits[index++ & (CORPUS_SIZE - 1)], CONTEXT, result);
+    }
+
+    @Benchmark
+    public boolean missReused() {
+        return logProcessor.process(misses[index++ & (CORPUS_SIZE - 1)], CONTEXT, result);
+    }
+}
@@ -0,0 +1,73 @@
+package com.github.logtrail.tools.benchmarks;
+
+import java.util.Random;
+
+/**
+ * Generates reproducible SLF4J message templates, the regexes the analyzer creates for them and
+ * messages matching them.
+ */
+public class SyntheticPatterns {
+    private static final String[] WORDS = {"request", "user", "session", "block", "replica", "node", "cache",
+            "failed", "completed", "started", "stopped", "queue", "txid", "lease", "snapshot", "retry",
+            "timeout", "server", "client", "channel", "token", "file", "path", "image", "storage"};
+    private static final String REGEX_SPECIAL_CHARS = "<([\\^-=$!|])?*+.>";
+
+    public static String words(Random random, int count) {
+        StringBuilder words = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                words.append(' ');
+            }
+            words.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return words.toString();
+    }
+
+    /**
+     * @return template with the given number of {} placeholders, separated by a few words
+     */
+    public static String template(Random random, int placeholders) {
+        StringBuilder template = new StringBuilder(words(random, 1 + random.nextInt(3)));
+        for (int i = 0; i < placeholders; i++) {
+            template.append(random.nextBoolean() ? " " : " = ").append("{}");
+            template.append(' ').append(words(random, 1 + random.nextInt(2)));
+        }
+        template.append(random.nextInt(10) == 0 ? "." : "");
+        return template.toString();
+    }
+
+    /**
+     * @return regex in the same form as created by the analyzer with regex boundaries
+     */
+    public static String toRegEx(String template) {
+        StringBuilder regex = new StringBuilder("^");
+        int arg = 1;
+        for (int i = 0; i < template.length(); i++) {
+            char c = template.charAt(i);
+            if (c == '{' && i + 1 < template.length() && template.charAt(i + 1) == '}') {
+                regex.append("(?<arg").append(arg++).append(">[\\S]+)");
+                i++;
+            } else {
+                if (REGEX_SPECIAL_CHARS.indexOf(c) != -1) {
+                    regex.append('\\');
+                }
+                regex.append(c);
+            }
+        }
+        return regex.append('$').toString();
+    }
+
+    /**
+     * @return message logged with the template with random argument values
+     */
+    public static String message(Random random, String template) {
+        StringBuilder message = new StringBuilder();
+        int start = 0;
+        for (int index = template.indexOf("{}"); index != -1; index = template.indexOf("{}", start)) {
+            message.append(template, start, index);
+            message.append(random.nextBoolean() ? String.valueOf(random.nextInt(100000)) : WORDS[random.nextInt(WORDS.length)] + "-" + random.nextInt(100));
+            start = index + 2;
+        }
+        return message.append(template.substring(start)).toString();
+    }
+}
@@ -0,0 +1,52 @@
+package com.github.logtrail.tools.benchmarks;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates reproducible Java source files with SLF4J log calls for analyzer benchmarks.
+ */
+public class SyntheticSources {
+    private static final String[] LEVELS = {"debug", "trace", "info", "warn", "error"};
+
+    public static List<byte[]> generate(int fileCount, int logsPerFile, long seed) {
+        Random random = new Random(seed);
+        List<byte[]> sources = new ArrayList<>(fileCount);
+        for (int i = 0; i < fileCount; i++) {
+            sources.add(generateFile("Generated" + i, logsPerFile, random).getBytes(StandardCharsets.UTF_8));
+        }
+        return sources;
+    }
+
+    private static String generateFile(String className, int logCount, Random random) {
+        StringBuilder source = new StringBuilder();
+        source.append("package com.example.generated;\n\n")
+                .append("import org.slf4j.Logger;\nimport org.slf4j.LoggerFactory;\nimport java.util.List;\n\n")
+                .append("public class ").append(className).append(" {\n")
+                .append("    private static final Logger LOGGER = LoggerFactory.getLogger(").append(className).append(".class);\n")
+                .append("    private int counter;\n\n");
+        for (int i = 0; i < logCount; i++) {
+            String arg = "value" + i;
+            source.append("    /**\n     * Method ").append(i).append("\n     */\n")
+                    .append("    public int method").append(i).append("(String ").append(arg).append(", List<String> items) {\n")
+                    .append("        for (String item : items) {\n")
+                    .append("            counter += item.length();\n")
+                    .append("        }\n");
+            String level = LEVELS[random.nextInt(LEVELS.length)];
+            if (random.nextBoolean()) {
+                source.append("        LOGGER.").append(level).append("(\"")
+                        .append(SyntheticPatterns.template(random, 1 + random.nextInt(3)))
+                        .append("\", ").append(arg).append(", counter);\n");
+            } else {
+                source.append("        LOGGER.").append(level).append("(\"")
+                        .append(SyntheticPatterns.words(random, 3)).append(" \" + ").append(arg)
+                        .append(" + \" ").append(SyntheticPatterns.words(random, 2)).append("\");\n");
+            }
+            source.append("        return counter;\n    }\n\n");
+        }
+        source.append("}\n");
+        return source.toString();
+    }
+}
@@ -0,0 +1,44 @@
+package com.github.logtrail.tools.sourceanalyzer;
+
+import com.github.logtrail.tools.benchmarks.SyntheticSources;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parse and extract time of JavaSrcAnalyzer over a generated source tree.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AnalyzerBenchmark {
+    private static final File FILE = new File("Generated.java");
+
+    @Param({"100"})
+    private int fileCount;
+
+    @Param({"5", "50"})
+    private int logsPerFile;
+
+    private JavaSrcAnalyzer analyzer;
+    private List<byte[]> sources;
+
+    @Setup
+    public void setup() throws Exception {
+        analyzer = new JavaSrcAnalyzer(null, null, null, "FQN");
+        sources = SyntheticSources.generate(fileCount, logsPerFile, 42);
+    }
+
+    @Benchmark
+    public void parseAndExtract(Blackhole blackhole) throws Exception {
+        for (byte[] source : sources) {
+            blackhole.consume(analyzer.analyzeFile(FILE, source));
+        }
+    }
+}
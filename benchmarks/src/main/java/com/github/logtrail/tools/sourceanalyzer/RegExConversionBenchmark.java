@@ -0,0 +1,36 @@
+package com.github.logtrail.tools.sourceanalyzer;
+
+import com.github.logtrail.tools.benchmarks.SyntheticPatterns;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Conversion of log messages with many placeholders to regexes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RegExConversionBenchmark {
+
+    @Param({"1", "10", "100", "1000"})
+    private int placeholders;
+
+    private LogStatementFactory statementFactory;
+    private String message;
+
+    @Setup
+    public void setup() {
+        statementFactory = new LogStatementFactory(JavaSrcAnalyzer.LogContext.FQN, true, "logstash-*");
+        message = SyntheticPatterns.template(new Random(42), placeholders);
+    }
+
+    @Benchmark
+    public String convertToRegEx() {
+        return statementFactory.convertToRegEx(message);
+    }
+}
@@ -0,0 +1,260 @@
+package com.github.logtrail.tools.common;
+
+import io.searchbox.action.Action;
+import io.searchbox.client.JestClient;
+import io.searchbox.client.JestClientFactory;
+import io.searchbox.client.JestResult;
+import io.searchbox.client.JestResultHandler;
+import io.searchbox.client.config.HttpClientConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Jest client spreading requests over several elasticsearch nodes in round robin, each node with its
+ * own connection pool. A node that fails a request (connection refused, timeout, 502 or 504 response) is
+ * ejected and the request is sent to the next node. Other error responses, like a 500 caused by the request
+ * or a cluster wide 503, are returned to the caller as the other nodes would answer the same. An ejected node
+ * gets requests again once its ejection time has passed: if it fails again it is ejected twice as long, up to
+ * elasticsearch.node.max.eject.millis, otherwise it is re-admitted. When all nodes are ejected the one ejected
+ * first is tried anyway, so requests fail only when every node failed them. Nodes can be replaced with
+ * {@link #setServers(Set)}, nodes that are kept keep their ejection state.
+ * <p>
+ * Settings: elasticsearch.connect.timeout.millis, elasticsearch.read.timeout.millis,
+ * elasticsearch.max.connections.per.node, elasticsearch.node.eject.millis and
+ * elasticsearch.node.max.eject.millis.
+ */
+public class FailoverJestClient implements JestClient {
+    private static final Logger LOGGER = LoggerFactory.getLogger(FailoverJestClient.class);
+    //replaced as a whole under lock, so requests iterate over a consistent list without locking
+    private volatile List<Node> nodes;
+    private final Object lock = new Object();
+    private final AtomicInteger next = new AtomicInteger();
+    private final int connectTimeout, readTimeout, maxConnections;
+    private final long ejectMillis, maxEjectMillis;
+
+    /**
+     * @param urls urls of the nodes, each may be a comma separated list of urls
+     */
+    public FailoverJestClient(Collection<String> urls, Properties properties) {
+        this.connectTimeout = Integer.parseInt(properties.getProperty("elasticsearch.connect.timeout.millis", "3000"));
+        this.readTimeout = Integer.parseInt(properties.getProperty("elasticsearch.read.timeout.millis", "30000"));
+        this.maxConnections = Integer.parseInt(properties.getProperty("elasticsearch.max.connections.per.node", "2"));
+        this.ejectMillis = Long.parseLong(properties.getProperty("elasticsearch.node.eject.millis", "1000"));
+        this.maxEjectMillis = Long.parseLong(properties.getProperty("elasticsearch.node.max.eject.millis", "60000"));
+        List<Node> created = new ArrayList<>();
+        for (String url : parseUrls(urls)) {
+            created.add(createNode(url));
+        }
+        if (created.isEmpty()) {
+            throw new IllegalArgumentException("No elasticsearch url in " + urls);
+        }
+        this.nodes = Collections.unmodifiableList(created);
+    }
+
+    public FailoverJestClient(String urls, Properties properties) {
+        this(Collections.singletonList(urls), properties);
+    }
+
+    /**
+     * Sends the action to the next available node, and to the other nodes while they fail it. If every node
+     * failed it the last 502 or 504 response is returned, or the connection failure thrown if no node responded.
+     */
+    @Override
+    public <T extends JestResult> T execute(Action<T> action) throws IOException {
+        List<Node> nodes = this.nodes;
+        IOException failure = null;
+        T failedResult = null;
+        Set<Node> tried = new HashSet<>();
+        while (tried.size() < nodes.size()) {
+            Node node = nextNode(nodes, tried);
+            tried.add(node);
+            try {
+                T result = node.client.execute(action);
+                if (isNodeFailure(result)) {
+                    node.failed("HTTP " + result.getResponseCode() + " " + result.getErrorMessage());
+                    failedResult = result;
+                    continue;
+                }
+                node.succeeded();
+                return result;
+            } catch (IOException e) {
+                node.failed(e.toString());
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        if (failedResult != null) {
+            return failedResult;
+        }
+        throw failure;
+    }
+
+    /**
+     * Sent to a single node, failures are not retried on other nodes.
+     */
+    @Override
+    public <T extends JestResult> void executeAsync(Action<T> action, JestResultHandler<? super T> handler) {
+        Node node = nextNode(nodes, Collections.emptySet());
+        node.client.executeAsync(action, new JestResultHandler<T>() {
+            @Override
+            public void completed(T result) {
+                if (isNodeFailure(result)) {
+                    node.failed("HTTP " + result.getResponseCode() + " " + result.getErrorMessage());
+                } else {
+                    node.succeeded();
+                }
+                handler.completed(result);
+            }
+
+            @Override
+            public void failed(Exception e) {
+                node.failed(e.toString());
+                handler.failed(e);
+            }
+        });
+    }
+
+    @Override
+    public void shutdownClient() {
+        synchronized (lock) {
+            for (Node node : nodes) {
+                node.client.shutdownClient();
+            }
+        }
+    }
+
+    /**
+     * Replaces the nodes with the given urls. Nodes whose url is kept are reused with their connection pool
+     * and ejection state, the clients of removed nodes are shut down, failing requests still in flight on them.
+     *
+     * @param servers urls of the nodes, each may be a comma separated list of urls
+     */
+    @Override
+    public void setServers(Set<String> servers) {
+        List<String> urls = parseUrls(servers);
+        if (urls.isEmpty()) {
+            throw new IllegalArgumentException("No elasticsearch url in " + servers);
+        }
+        synchronized (lock) {
+            Map<String, Node> current = new HashMap<>();
+            for (Node node : nodes) {
+                current.put(node.url, node);
+            }
+            List<Node> updated = new ArrayList<>();
+            for (String url : new LinkedHashSet<>(urls)) {
+                Node node = current.remove(url);
+                updated.add(node != null ? node : createNode(url));
+            }
+            nodes = Collections.unmodifiableList(updated);
+            for (Node removed : current.values()) {
+                removed.client.shutdownClient();
+            }
+            LOGGER.info("Elasticsearch nodes set to {}", urls);
+        }
+    }
+
+    /**
+     * @return urls of the nodes that are not ejected
+     */
+    public List<String> getAvailableNodes() {
+        List<String> available = new ArrayList<>();
+        long now = System.nanoTime();
+        for (Node node : nodes) {
+            if (node.isAvailable(now)) {
+                available.add(node.url);
+            }
+        }
+        return available;
+    }
+
+    //Next available node in round robin, or the node whose ejection ends first
+    private Node nextNode(List<Node> nodes, Set<Node> excluded) {
+        long now = System.nanoTime();
+        int start = Math.floorMod(next.getAndIncrement(), nodes.size());
+        Node earliest = null;
+        for (int i = 0; i < nodes.size(); i++) {
+            Node node = nodes.get((start + i) % nodes.size());
+            if (excluded.contains(node)) {
+                continue;
+            }
+            if (node.isAvailable(now)) {
+                return node;
+            }
+            if (earliest == null || node.ejectedUntil - earliest.ejectedUntil < 0) {
+                earliest = node;
+            }
+        }
+        return earliest;
+    }
+
+    private Node createNode(String url) {
+        JestClientFactory factory = new JestClientFactory();
+        factory.setHttpClientConfig(new HttpClientConfig
+                .Builder(url)
+                .multiThreaded(true)
+                .connTimeout(connectTimeout)
+                .readTimeout(readTimeout)
+                .defaultMaxTotalConnectionPerRoute(maxConnections)
+                .maxTotalConnection(maxConnections).build());
+        return new Node(url, factory.getObject());
+    }
+
+    //The node, or a proxy in front of it, could not reach elasticsearch. Another node may
+    private static boolean isNodeFailure(JestResult result) {
+        return result != null && (result.getResponseCode() == 502 || result.getResponseCode() == 504);
+    }
+
+    static List<String> parseUrls(Collection<String> urls) {
+        List<String> parsed = new ArrayList<>();
+        for (String url : urls) {
+            for (String part : url.split(",")) {
+                if (!part.trim().isEmpty()) {
+                    parsed.add(part.trim());
+                }
+            }
+        }
+        return parsed;
+    }
+
+    private class Node {
+        private final String url;
+        private final JestClient client;
+        private int failures = 0;
+        private volatile boolean ejected = false;
+        private volatile long ejectedUntil;
+
+        Node(String url, JestClient client) {
+            this.url = url;
+            this.client = client;
+        }
+
+        boolean isAvailable(long now) {
+            return !ejected || ejectedUntil - now <= 0;
+        }
+
+        synchronized void succeeded() {
+            if (ejected) {
+                LOGGER.info("Re-admitting elasticsearch node {}", url);
+                ejected = false;
+            }
+            failures = 0;
+        }
+
+        synchronized void failed(String reason) {
+            failures++;
+            long millis = Math.min(maxEjectMillis, ejectMillis << Math.min(failures - 1, 20));
+            ejectedUntil = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+            ejected = true;
+            LOGGER.warn("Ejecting elasticsearch node {} for {} ms after {} consecutive failures: {}",
+                    url, millis, failures, reason);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.github.logtrail.tools.common;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Reads the patterns of a bundle written by {@link PatternBundleWriter}. The file is memory mapped
+ * and decoded in a single pass. Each string of the string table is decoded once, so patterns share
+ * the same String instances for their contexts, field names and segments.
+ */
+public class PatternBundleReader {
+
+    private PatternBundleReader() {
+    }
+
+    /**
+     * @throws IOException if the file is not a pattern bundle, is of a newer version or is corrupted
+     */
+    public static List<PatternRecord> read(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            try {
+                return read(buffer);
+            } catch (IOException e) {
+                throw new IOException(e.getMessage() + ": " + file, e);
+            }
+        }
+    }
+
+    static List<PatternRecord> read(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < 20 || buffer.getInt(buffer.position()) != PatternBundleWriter.MAGIC) {
+            throw new IOException("Not a pattern bundle");
+        }
+        int version = buffer.getInt(buffer.position() + 4);
+        if (version > PatternBundleWriter.VERSION) {
+            throw new IOException("Unsupported pattern bundle version " + version);
+        }
+        ByteBuffer content = buffer.slice();
+        content.limit(content.limit() - 4);
+        int expectedCrc = buffer.getInt(buffer.limit() - 4);
+        CRC32 crc = new CRC32();
+        crc.update(content.duplicate());
+        if ((int) crc.getValue() != expectedCrc) {
+            throw new IOException("Corrupted pattern bundle");
+        }
+
+        try {
+            content.position(8);
+            String[] strings = new String[content.getInt()];
+            int patternCount = content.getInt();
+            byte[] bytes = new byte[256];
+            for (int i = 0; i < strings.length; i++) {
+                int length = content.getInt();
+                if (length > bytes.length) {
+                    bytes = new byte[Math.max(length, bytes.length * 2)];
+                }
+                content.get(bytes, 0, length);
+                strings[i] = new String(bytes, 0, length, StandardCharsets.UTF_8);
+            }
+            List<PatternRecord> records = new ArrayList<>(patternCount);
+            for (int i = 0; i < patternCount; i++) {
+                PatternRecord record = new PatternRecord();
+                record.setId(readString(content, strings));
+                record.setContext(readString(content, strings));
+                record.setIndexPattern(readString(content, strings));
+                record.setLevel(readString(content, strings));
+                record.setMethod(readString(content, strings));
+                record.setMessageRegEx(readString(content, strings));
+                record.setSegments(readStrings(content, strings));
+                record.setFields(readStrings(content, strings));
+                record.setArgs(readStrings(content, strings));
+                records.add(record);
+            }
+            return records;
+        } catch (BufferUnderflowException | ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Corrupted pattern bundle", e);
+        }
+    }
+
+    private static List<String> readStrings(ByteBuffer buffer, String[] strings) {
+        int count = readVarInt(buffer) - 1;
+        if (count < 0) {
+            return null;
+        }
+        if (count == 0) {
+            return Collections.emptyList();
+        }
+        String[] values = new String[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = readString(buffer, strings);
+        }
+        return Arrays.asList(values);
+    }
+
+    private static String readString(ByteBuffer buffer, String[] strings) {
+        int id = readVarInt(buffer) - 1;
+        return id < 0 ? null : strings[id];
+    }
+
+    private static int readVarInt(ByteBuffer buffer) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+}
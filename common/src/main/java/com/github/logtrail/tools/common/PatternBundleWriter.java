@@ -0,0 +1,123 @@
+package com.github.logtrail.tools.common;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Writes log patterns to a pattern bundle, a compact binary file that loads without parsing JSON.
+ * Every string (ids, contexts, regexes, segments, field names) is stored once in a string table
+ * and referenced by index, so contexts and field names shared by many patterns take no extra space.
+ * <pre>
+ * int     magic 'LTPB'
+ * int     version
+ * int     number of strings
+ * int     number of patterns
+ * strings: int UTF-8 length, bytes
+ * patterns: varint references to the string table for id, context, indexPattern, level, method and
+ *           messageRegEx, then segments, fields and args, each a varint count followed by references
+ * int     CRC32 of all the bytes before it
+ * </pre>
+ * References and counts are stored plus one, 0 stands for null. Patterns are buffered in memory and
+ * the bundle is written on close to a temporary file that replaces the bundle file, so readers never
+ * see a partial bundle.
+ */
+public class PatternBundleWriter implements Closeable {
+    static final int MAGIC = 0x4C545042;
+    static final int VERSION = 1;
+    private final Path file;
+    private final Map<String, Integer> stringIds = new HashMap<>();
+    private final List<String> strings = new ArrayList<>();
+    private final ByteArrayOutputStream patterns = new ByteArrayOutputStream();
+    private int patternCount = 0;
+    private boolean closed = false;
+
+    public PatternBundleWriter(Path file) {
+        this.file = file;
+    }
+
+    public void add(PatternRecord record) {
+        writeString(record.getId());
+        writeString(record.getContext());
+        writeString(record.getIndexPattern());
+        writeString(record.getLevel());
+        writeString(record.getMethod());
+        writeString(record.getMessageRegEx());
+        writeStrings(record.getSegments());
+        writeStrings(record.getFields());
+        writeStrings(record.getArgs());
+        patternCount++;
+    }
+
+    public int size() {
+        return patternCount;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        Path tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+        CRC32 crc = new CRC32();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+            DataOutputStream checked = new DataOutputStream(new CheckedOutputStream(out, crc));
+            checked.writeInt(MAGIC);
+            checked.writeInt(VERSION);
+            checked.writeInt(strings.size());
+            checked.writeInt(patternCount);
+            for (String string : strings) {
+                byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+                checked.writeInt(bytes.length);
+                checked.write(bytes);
+            }
+            patterns.writeTo(checked);
+            checked.flush();
+            out.writeInt((int) crc.getValue());
+        }
+        Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void writeStrings(List<String> values) {
+        if (values == null) {
+            writeVarInt(0);
+            return;
+        }
+        writeVarInt(values.size() + 1);
+        for (String value : values) {
+            writeString(value);
+        }
+    }
+
+    private void writeString(String value) {
+        if (value == null) {
+            writeVarInt(0);
+            return;
+        }
+        Integer id = stringIds.get(value);
+        if (id == null) {
+            id = strings.size();
+            stringIds.put(value, id);
+            strings.add(value);
+        }
+        writeVarInt(id + 1);
+    }
+
+    //7 bits per byte, the high bit set on all but the last byte
+    private void writeVarInt(int value) {
+        while ((value & ~0x7F) != 0) {
+            patterns.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        patterns.write(value);
+    }
+}
@@ -0,0 +1,96 @@
+package com.github.logtrail.tools.common;
+
+import java.util.List;
+
+/**
+ * A log pattern as stored in a pattern bundle: the message regex with its pre-tokenized template
+ * (the literal segments around the {} placeholders) and the field names of the placeholders.
+ */
+public class PatternRecord {
+    private String id;
+    private String context;
+    private String indexPattern;
+    private String level;
+    private String method;
+    private String messageRegEx;
+    private List<String> segments;
+    private List<String> fields;
+    private List<String> args;
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getContext() {
+        return context;
+    }
+
+    public void setContext(String context) {
+        this.context = context;
+    }
+
+    public String getIndexPattern() {
+        return indexPattern;
+    }
+
+    public void setIndexPattern(String indexPattern) {
+        this.indexPattern = indexPattern;
+    }
+
+    public String getLevel() {
+        return level;
+    }
+
+    public void setLevel(String level) {
+        this.level = level;
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public void setMethod(String method) {
+        this.method = method;
+    }
+
+    public String getMessageRegEx() {
+        return messageRegEx;
+    }
+
+    public void setMessageRegEx(String messageRegEx) {
+        this.messageRegEx = messageRegEx;
+    }
+
+    public List<String> getSegments() {
+        return segments;
+    }
+
+    public void setSegments(List<String> segments) {
+        this.segments = segments;
+    }
+
+    public List<String> getFields() {
+        return fields;
+    }
+
+    public void setFields(List<String> fields) {
+        this.fields = fields;
+    }
+
+    public List<String> getArgs() {
+        return args;
+    }
+
+    public void setArgs(List<String> args) {
+        this.args = args;
+    }
+
+    @Override
+    public String toString() {
+        return context + "|" + messageRegEx;
+    }
+}
@@ -0,0 +1,170 @@
+package com.github.logtrail.tools;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntConsumer;
+
+/**
+ * Aho-Corasick automaton finding all the keywords occurring in a text in a single pass over the text.
+ * Transitions are kept in one open addressing table keyed by state and char, so the automaton takes
+ * little memory for large keyword sets and searching does not allocate. Immutable once built, safe to
+ * use from multiple threads.
+ */
+class AhoCorasick {
+    private static final long EMPTY = -1;
+    private final TransitionTable transitions = new TransitionTable(16);
+    //longest proper suffix of each state that is a state
+    private final int[] fail;
+    //nearest state on the fail chain, including the state itself, that ends a keyword, -1 if none
+    private final int[] output;
+    //keywords ending at each state, null if none
+    private final int[][] keywords;
+
+    /**
+     * @param keywords non empty keywords
+     */
+    AhoCorasick(List<String> keywords) {
+        List<int[]> children = new ArrayList<>();
+        List<int[]> ends = new ArrayList<>();
+        children.add(new int[0]);
+        ends.add(null);
+        //build the trie, children as pairs of char and state
+        for (int k = 0; k < keywords.size(); k++) {
+            String keyword = keywords.get(k);
+            int state = 0;
+            for (int i = 0; i < keyword.length(); i++) {
+                char c = keyword.charAt(i);
+                int next = transitions.get(state, c);
+                if (next == -1) {
+                    next = children.size();
+                    children.add(new int[0]);
+                    ends.add(null);
+                    transitions.put(state, c, next);
+                    int[] stateChildren = children.get(state);
+                    stateChildren = Arrays.copyOf(stateChildren, stateChildren.length + 2);
+                    stateChildren[stateChildren.length - 2] = c;
+                    stateChildren[stateChildren.length - 1] = next;
+                    children.set(state, stateChildren);
+                }
+                state = next;
+            }
+            int[] stateEnds = ends.get(state);
+            stateEnds = stateEnds == null ? new int[1] : Arrays.copyOf(stateEnds, stateEnds.length + 1);
+            stateEnds[stateEnds.length - 1] = k;
+            ends.set(state, stateEnds);
+        }
+
+        int states = children.size();
+        this.fail = new int[states];
+        this.output = new int[states];
+        this.keywords = ends.toArray(new int[0][]);
+        output[0] = -1;
+        //breadth first, so the fail state of a state is computed before its children
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        queue.add(0);
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            int[] stateChildren = children.get(state);
+            for (int i = 0; i < stateChildren.length; i += 2) {
+                char c = (char) stateChildren[i];
+                int child = stateChildren[i + 1];
+                int failState = 0;
+                if (state != 0) {
+                    failState = fail[state];
+                    while (failState != 0 && get(failState, c) == -1) {
+                        failState = fail[failState];
+                    }
+                    int next = get(failState, c);
+                    failState = next == -1 ? 0 : next;
+                }
+                fail[child] = failState;
+                output[child] = this.keywords[child] != null ? child : output[failState];
+                queue.add(child);
+            }
+        }
+    }
+
+    /**
+     * Calls the consumer with the index of each keyword occurring in the text, once per occurrence.
+     */
+    void search(String text, IntConsumer consumer) {
+        int state = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            int next = get(state, c);
+            while (next == -1 && state != 0) {
+                state = fail[state];
+                next = get(state, c);
+            }
+            state = next == -1 ? 0 : next;
+            for (int match = output[state]; match != -1; match = output[fail[match]]) {
+                for (int keyword : keywords[match]) {
+                    consumer.accept(keyword);
+                }
+            }
+        }
+    }
+
+    private int get(int state, char c) {
+        return transitions.get(state, c);
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private static class TransitionTable {
+        private long[] keys;
+        private int[] targets;
+        private int mask, size;
+
+        TransitionTable(int capacity) {
+            keys = new long[capacity];
+            Arrays.fill(keys, EMPTY);
+            targets = new int[capacity];
+            mask = capacity - 1;
+        }
+
+        int get(int state, char c) {
+            long key = ((long) state << 16) | c;
+            for (int slot = hash(key) & mask; ; slot = (slot + 1) & mask) {
+                if (keys[slot] == key) {
+                    return targets[slot];
+                }
+                if (keys[slot] == EMPTY) {
+                    return -1;
+                }
+            }
+        }
+
+        void put(int state, char c, int target) {
+            //at most half full
+            if (++size * 2 > keys.length) {
+                long[] oldKeys = keys;
+                int[] oldTargets = targets;
+                keys = new long[oldKeys.length * 2];
+                Arrays.fill(keys, EMPTY);
+                targets = new int[keys.length];
+                mask = keys.length - 1;
+                for (int i = 0; i < oldKeys.length; i++) {
+                    if (oldKeys[i] != EMPTY) {
+                        insert(oldKeys[i], oldTargets[i]);
+                    }
+                }
+            }
+            insert(((long) state << 16) | c, target);
+        }
+
+        private void insert(long key, int target) {
+            int slot = hash(key) & mask;
+            while (keys[slot] != EMPTY) {
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = key;
+            targets[slot] = target;
+        }
+    }
+}
@@ -0,0 +1,364 @@
+package com.github.logtrail.tools;
+
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntConsumer;
+
+/**
+ * Patterns of a context with an index selecting the few patterns that can match a message. Every
+ * message matching a pattern contains the literal segments of its template, so the longest segment of
+ * each template is added to an Aho-Corasick automaton and a single pass over the message finds the
+ * patterns whose longest segment occurs in it. Patterns without a segment of at least
+ * MIN_ANCHOR_LENGTH chars, and regexes not created by the analyzer, are candidates for every message.
+ * <p>
+ * Templates without groups only match their literal text, so they are not candidates but looked up by
+ * message in a hash map, before the candidates are matched.
+ * <p>
+ * Candidates are selected in the order of an ordering of the patterns, so the first matching candidate
+ * is the pattern a scan of all the patterns in that order would find. The ordering starts as the order
+ * of the patterns and is recomputed by {@link #reorder()} from hit counters, most hit patterns first,
+ * so frequent messages are matched by their first candidates. Orderings are immutable snapshots swapped
+ * with a volatile write, matching threads never block on a reorder.
+ */
+class ContextPatterns {
+    static final int MIN_ANCHOR_LENGTH = 3;
+    private final LogProcessor.LogPattern[] patterns;
+    private final AhoCorasick anchors;
+    //patterns of the templates without groups by their text
+    private final Map<String, Integer> exactPatterns = new HashMap<>();
+    //patterns of each anchor
+    private final int[][] anchorPatterns;
+    //patterns without anchor
+    private final int[] unanchoredPatterns;
+    private volatile Ordering ordering;
+    private final LongAdder[] hits;
+    //hits decayed by half at each reorder, and hits already added to them, only used by reorder
+    private final long[] scores;
+    private final long[] scoredHits;
+    //messages not matched by any pattern
+    private final LongAdder misses = new LongAdder();
+
+    ContextPatterns(List<LogProcessor.LogPattern> patterns) {
+        this.patterns = patterns.toArray(new LogProcessor.LogPattern[0]);
+        Map<String, List<Integer>> patternsByAnchor = new LinkedHashMap<>();
+        List<Integer> unanchored = new ArrayList<>();
+        for (int i = 0; i < this.patterns.length; i++) {
+            MessageTemplate template = this.patterns[i].getTemplate();
+            if (template != null && template.getGroupCount() == 0) {
+                //the first pattern of a text wins, as it would in a scan
+                exactPatterns.putIfAbsent(template.getSegments()[0], i);
+                continue;
+            }
+            String anchor = template != null ? template.getLongestSegment() : "";
+            if (anchor.length() >= MIN_ANCHOR_LENGTH) {
+                patternsByAnchor.computeIfAbsent(anchor, key -> new ArrayList<>()).add(i);
+            } else {
+                unanchored.add(i);
+            }
+        }
+        this.anchors = patternsByAnchor.isEmpty() ? null : new AhoCorasick(new ArrayList<>(patternsByAnchor.keySet()));
+        this.anchorPatterns = new int[patternsByAnchor.size()][];
+        int anchor = 0;
+        for (List<Integer> anchorPatternList : patternsByAnchor.values()) {
+            anchorPatterns[anchor++] = toArray(anchorPatternList);
+        }
+        this.unanchoredPatterns = toArray(unanchored);
+        this.hits = new LongAdder[this.patterns.length];
+        for (int i = 0; i < hits.length; i++) {
+            hits[i] = new LongAdder();
+        }
+        this.scores = new long[this.patterns.length];
+        this.scoredHits = new long[this.patterns.length];
+        int[] order = new int[this.patterns.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        this.ordering = new Ordering(order, anchorPatterns, unanchoredPatterns);
+    }
+
+    /**
+     * @return index of the pattern without groups whose text is the message, -1 if there is none
+     */
+    int exactMatch(String message) {
+        Integer index = exactPatterns.get(message);
+        return index != null ? index : -1;
+    }
+
+    /**
+     * Selects the patterns that can match the message into candidates, in the order of the current ordering.
+     */
+    void select(String message, Candidates candidates) {
+        //candidates are selected as positions in the ordering
+        Ordering order = ordering;
+        int[] unanchored = order.unanchored;
+        if (anchors == null) {
+            candidates.set(unanchored, unanchored.length, order.patterns);
+            return;
+        }
+        candidates.startSearch(patterns.length, order.anchorPositions);
+        anchors.search(message, candidates);
+        int found = candidates.endSearch();
+        if (found == 0) {
+            candidates.set(unanchored, unanchored.length, order.patterns);
+            return;
+        }
+        //merge the found positions, sorted, with the unanchored ones
+        int[] merged = candidates.merged(found + unanchored.length);
+        int[] foundPositions = candidates.found;
+        int count = 0, next = 0;
+        for (int i = 0; i < found; i++) {
+            int position = foundPositions[i];
+            while (next < unanchored.length && unanchored[next] < position) {
+                merged[count++] = unanchored[next++];
+            }
+            merged[count++] = position;
+        }
+        while (next < unanchored.length) {
+            merged[count++] = unanchored[next++];
+        }
+        candidates.set(merged, count, order.patterns);
+    }
+
+    void recordHit(int index) {
+        hits[index].increment();
+    }
+
+    /**
+     * @return number of messages matched by the pattern
+     */
+    long getHits(int index) {
+        return hits[index].sum();
+    }
+
+    void recordMiss() {
+        misses.increment();
+    }
+
+    long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Carries the hits, scores and misses of the previous patterns of the context over to this one, by
+     * pattern id, so a reload adding or removing a few patterns does not reset the counters of the others.
+     * Called before the patterns are published.
+     */
+    synchronized void inheritHits(ContextPatterns previous) {
+        Map<String, Integer> indexes = new HashMap<>();
+        for (int i = 0; i < previous.patterns.length; i++) {
+            indexes.putIfAbsent(previous.patterns[i].getId(), i);
+        }
+        synchronized (previous) {
+            for (int i = 0; i < patterns.length; i++) {
+                Integer index = indexes.get(patterns[i].getId());
+                if (index != null) {
+                    long total = previous.hits[index].sum();
+                    hits[i].add(total);
+                    scores[i] = previous.scores[index] + (total - previous.scoredHits[index]);
+                    scoredHits[i] = total;
+                }
+            }
+        }
+        misses.add(previous.misses.sum());
+    }
+
+    /**
+     * @return indexes of the patterns in the order candidates are matched
+     */
+    int[] getOrder() {
+        return ordering.patterns.clone();
+    }
+
+    /**
+     * Orders the patterns by their hits, most hit first. Hits count half at each reorder, so the ordering
+     * follows changes in the messages logged. Patterns with the same score keep their relative order.
+     *
+     * @return true if the ordering changed
+     */
+    synchronized boolean reorder() {
+        for (int i = 0; i < patterns.length; i++) {
+            long total = hits[i].sum();
+            scores[i] = scores[i] / 2 + (total - scoredHits[i]);
+            scoredHits[i] = total;
+        }
+        Integer[] sorted = new Integer[patterns.length];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = ordering.patterns[i];
+        }
+        //stable, so ties keep the current order and a steady load does not reshuffle patterns
+        Arrays.sort(sorted, (first, second) -> Long.compare(scores[second], scores[first]));
+        int[] order = new int[sorted.length];
+        boolean changed = false;
+        for (int i = 0; i < order.length; i++) {
+            order[i] = sorted[i];
+            changed |= order[i] != ordering.patterns[i];
+        }
+        if (changed) {
+            ordering = new Ordering(order, anchorPatterns, unanchoredPatterns);
+        }
+        return changed;
+    }
+
+    /**
+     * @return true if the patterns are the patterns of this context, in the same order
+     */
+    boolean hasPatterns(List<LogProcessor.LogPattern> patterns) {
+        if (patterns.size() != this.patterns.length) {
+            return false;
+        }
+        for (int i = 0; i < this.patterns.length; i++) {
+            if (patterns.get(i) != this.patterns[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    LogProcessor.LogPattern get(int index) {
+        return patterns[index];
+    }
+
+    int size() {
+        return patterns.length;
+    }
+
+    /**
+     * Candidate patterns of a message, reused across messages so selecting candidates does not allocate.
+     * Not thread safe.
+     */
+    static class Candidates implements IntConsumer {
+        private static final int MAX_SORTED = 16;
+        private int[] positions;
+        private int size;
+        //patterns at each position of the ordering the candidates were selected with
+        private int[] patterns;
+        //positions found by the search, deduplicated with a bit set cleared after each search
+        private int[] found = new int[16];
+        private int foundCount;
+        private long[] seen = new long[0];
+        private int minWord, maxWord;
+        private int[] merged = new int[16];
+        private int[][] anchorPositions;
+
+        int size() {
+            return size;
+        }
+
+        /**
+         * @return index of the i-th candidate pattern
+         */
+        int get(int i) {
+            return patterns[positions[i]];
+        }
+
+        @Override
+        public void accept(int anchor) {
+            for (int position : anchorPositions[anchor]) {
+                long bit = 1L << position;
+                int word = position >>> 6;
+                if ((seen[word] & bit) == 0) {
+                    seen[word] |= bit;
+                    if (foundCount == found.length) {
+                        found = Arrays.copyOf(found, 2 * foundCount);
+                    }
+                    found[foundCount++] = position;
+                    minWord = Math.min(minWord, word);
+                    maxWord = Math.max(maxWord, word);
+                }
+            }
+        }
+
+        private void startSearch(int patternCount, int[][] anchorPositions) {
+            if (seen.length < (patternCount + 63) >>> 6) {
+                seen = new long[(patternCount + 63) >>> 6];
+            }
+            this.anchorPositions = anchorPositions;
+            foundCount = 0;
+            minWord = Integer.MAX_VALUE;
+            maxWord = -1;
+        }
+
+        //sorts the found positions and clears the bit set, returns the number of positions found
+        private int endSearch() {
+            if (foundCount <= MAX_SORTED) {
+                //insertion sort, Arrays.sort allocates for arrays made of sorted runs
+                for (int i = 0; i < foundCount; i++) {
+                    int position = found[i];
+                    seen[position >>> 6] = 0;
+                    int j = i;
+                    for (; j > 0 && found[j - 1] > position; j--) {
+                        found[j] = found[j - 1];
+                    }
+                    found[j] = position;
+                }
+            } else {
+                //many positions are read back in order from the bit set
+                int count = 0;
+                for (int word = minWord; word <= maxWord; word++) {
+                    long bits = seen[word];
+                    seen[word] = 0;
+                    while (bits != 0) {
+                        found[count++] = (word << 6) + Long.numberOfTrailingZeros(bits);
+                        bits &= bits - 1;
+                    }
+                }
+            }
+            anchorPositions = null;
+            return foundCount;
+        }
+
+        private int[] merged(int length) {
+            if (merged.length < length) {
+                merged = new int[Math.max(length, 2 * merged.length)];
+            }
+            return merged;
+        }
+
+        private void set(int[] positions, int size, int[] patterns) {
+            this.positions = positions;
+            this.size = size;
+            this.patterns = patterns;
+        }
+    }
+
+    /**
+     * Order in which the patterns are matched, with the anchors and unanchored patterns as positions in it.
+     */
+    private static class Ordering {
+        //pattern at each position
+        private final int[] patterns;
+        private final int[][] anchorPositions;
+        //positions of the unanchored patterns, ascending
+        private final int[] unanchored;
+
+        Ordering(int[] patterns, int[][] anchorPatterns, int[] unanchoredPatterns) {
+            this.patterns = patterns;
+            int[] positions = new int[patterns.length];
+            for (int position = 0; position < patterns.length; position++) {
+                positions[patterns[position]] = position;
+            }
+            this.anchorPositions = new int[anchorPatterns.length][];
+            for (int anchor = 0; anchor < anchorPatterns.length; anchor++) {
+                anchorPositions[anchor] = toPositions(anchorPatterns[anchor], positions);
+            }
+            this.unanchored = toPositions(unanchoredPatterns, positions);
+            Arrays.sort(unanchored);
+        }
+
+        private static int[] toPositions(int[] patterns, int[] positions) {
+            int[] patternPositions = new int[patterns.length];
+            for (int i = 0; i < patterns.length; i++) {
+                patternPositions[i] = positions[patterns[i]];
+            }
+            return patternPositions;
+        }
+    }
+
+    private static int[] toArray(List<Integer> values) {
+        int[] array = new int[values.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = values.get(i);
+        }
+        return array;
+    }
+}
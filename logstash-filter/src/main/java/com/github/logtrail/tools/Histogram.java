@@ -0,0 +1,87 @@
+package com.github.logtrail.tools;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of non negative values in power of two buckets: bucket b counts the values of b bits, from
+ * 2^(b-1) to 2^b - 1, bucket 0 counts zeros. Recording only adds to LongAdders, so threads recording
+ * concurrently do not contend. Percentiles are the upper bound of their bucket, at most twice the value.
+ */
+class Histogram {
+    private final LongAdder[] buckets = new LongAdder[64];
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    Histogram() {
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    void record(long value) {
+        value = Math.max(0, value);
+        buckets[64 - Long.numberOfLeadingZeros(value)].increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    long getCount() {
+        long count = 0;
+        for (LongAdder bucket : buckets) {
+            count += bucket.sum();
+        }
+        return count;
+    }
+
+    double getMean() {
+        long count = getCount();
+        return count == 0 ? 0 : (double) sum.sum() / count;
+    }
+
+    long getMax() {
+        return max.get();
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return upper bound of the bucket holding the percentile, 0 if nothing was recorded
+     */
+    long getPercentile(double percentile) {
+        long[] counts = new long[buckets.length];
+        long count = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            counts[i] = buckets[i].sum();
+            count += counts[i];
+        }
+        long rank = (long) Math.ceil(count * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank && seen > 0) {
+                return upperBound(i);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return count of the non empty buckets by their upper bound, as "&lt;=bound"
+     */
+    Map<String, Long> getBuckets() {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (int i = 0; i < buckets.length; i++) {
+            long count = buckets[i].sum();
+            if (count > 0) {
+                counts.put("<=" + upperBound(i), count);
+            }
+        }
+        return counts;
+    }
+
+    private static long upperBound(int bucket) {
+        return bucket == 63 ? Long.MAX_VALUE : (1L << bucket) - 1;
+    }
+}
@@ -1,21 +1,44 @@
 package com.github.logtrail.tools;
 
+import com.github.logtrail.tools.common.FailoverJestClient;
+import com.github.logtrail.tools.common.PatternBundleReader;
+import com.github.logtrail.tools.common.PatternRecord;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 import io.searchbox.annotations.JestId;
 import io.searchbox.client.JestClient;
-import io.searchbox.client.JestClientFactory;
 import io.searchbox.client.JestResult;
-import io.searchbox.client.config.HttpClientConfig;
 import io.searchbox.core.Search;
 import io.searchbox.core.SearchResult;
 import io.searchbox.core.SearchScroll;
 import io.searchbox.params.Parameters;
-import org.apache.commons.lang3.math.NumberUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
 import java.text.MessageFormat;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
@@ -26,60 +49,524 @@ import java.util.stream.Collectors;
 public class LogProcessor {
     private JestClient elasticClient;
     private String indexPattern;
-    private Map<String, List<LogPattern>> contextToPatternsMap;
+    private String bundleFile;
+    //Snapshot of the patterns, replaced as a whole by reloads so process never sees a partly built map
+    private volatile Map<String, ContextPatterns> contextToPatternsMap = Collections.emptyMap();
+    //Patterns of the snapshot by id, only used when loading patterns
+    private volatile Map<String, LogPattern> loadedPatterns = new LinkedHashMap<>();
+    private FileTime bundleModified;
+    //Last refresh rejected as it removed too many patterns, with its bundle modification time, and the
+    //number of consecutive refreshes that found the same patterns
+    private Map<String, LogPattern> rejectedPatterns;
+    private FileTime rejectedBundleModified;
+    private int rejectedRefreshes;
+    private int refreshRemovalConfirmations;
+    private long reorderIntervalMillis, refreshIntervalMillis;
+    private double refreshMaxRemovedRatio;
+    private int batchParallelism;
+    private boolean batchVirtualThreads;
+    private ExecutorService batchExecutor;
+    private volatile long lastRefreshMillis;
+    private final AtomicLong reloads = new AtomicLong(), refreshFailures = new AtomicLong();
+    private ScheduledExecutorService executor;
+    private ScheduledFuture<?> reorderTask, refreshTask, metricsTask;
+    //null when metrics are disabled
+    private MatchMetrics metrics;
+    private ObjectName metricsName;
+    private boolean metricsRegistered;
+    private Path metricsFile;
+    private long metricsDumpIntervalMillis;
+    //null when disabled
+    private NegativeCache negativeCache;
+    //Index or alias of the patterns. Versioned cold writes move the alias atomically, so a scroll
+    //reads either all the patterns of the previous run or all of the new one
     private final String INDEX_NAME = ".logtrail";
     private final String TYPE_NAME = "pattern";
+    private static final int FETCH_SIZE = 500;
+    //smallest number of messages of a batch processed by a task
+    private static final int MIN_BATCH_CHUNK = 64;
     private static final Logger LOGGER = LoggerFactory.getLogger(LogProcessor.class);
+    //results reused by the map API, which copies them into a new map
+    private static final ThreadLocal<MatchResult> RESULTS = ThreadLocal.withInitial(MatchResult::new);
 
     public LogProcessor(String[] esHosts, String indexPattern) {
-        JestClientFactory factory = new JestClientFactory();
-        factory.setHttpClientConfig(new HttpClientConfig
-                .Builder(esHosts[0])
-                .multiThreaded(true).build());
-        this.elasticClient = factory.getObject();
+        this(esHosts, indexPattern, new Properties());
+    }
+
+    /**
+     * @param esHosts    urls of the elasticsearch nodes, patterns are fetched from any available node
+     * @param properties node settings of {@link FailoverJestClient} and the settings of the processor, see
+     *                   {@link #configure(Properties)}
+     */
+    public LogProcessor(String[] esHosts, String indexPattern, Properties properties) {
+        this.elasticClient = new FailoverJestClient(Arrays.asList(esHosts), properties);
+        this.indexPattern = indexPattern;
+        configure(properties);
+    }
+
+    /**
+     * Loads the patterns from a pattern bundle written by the source analyzer instead of elasticsearch.
+     *
+     * @param bundleFile   path of the bundle
+     * @param indexPattern only patterns of this index pattern are loaded, all patterns if null
+     */
+    public LogProcessor(String bundleFile, String indexPattern) {
+        this(bundleFile, indexPattern, new Properties());
+    }
+
+    /**
+     * @param properties settings of the processor, see {@link #configure(Properties)}
+     */
+    public LogProcessor(String bundleFile, String indexPattern, Properties properties) {
+        this.bundleFile = bundleFile;
         this.indexPattern = indexPattern;
+        configure(properties);
+    }
+
+    /**
+     * patterns.reorder.interval.millis: interval at which the patterns of each context are reordered by their
+     * hits, 0 to keep the patterns in the order they were loaded.
+     * patterns.refresh.interval.millis: interval at which new and removed patterns are loaded from
+     * elasticsearch or the bundle, 0 to load the patterns only once.
+     * patterns.refresh.max.removed.ratio: largest share of the loaded patterns a refresh may remove, 0.5 by
+     * default. A refresh removing more, like one finding no pattern at all while the index is rebuilt, is
+     * counted as a failed refresh and the current patterns stay in use. 1 to allow any refresh.
+     * patterns.refresh.removal.confirmations: number of consecutive refreshes that have to find the same
+     * patterns for a refresh removing more than patterns.refresh.max.removed.ratio to be applied, 3 by default.
+     * 0 to never apply it.
+     * batch.parallelism: number of threads processing batches, the number of processors by default.
+     * batch.virtual.threads: true to process batches on virtual threads when the JVM supports them.
+     * cache.negative.size: number of unmatched messages remembered, so they are not matched again until the
+     * patterns change, 0 to not remember them. Messages longer than 2048 chars are not remembered.
+     * metrics.enabled: false to not count matches, true by default.
+     * metrics.jmx.name: name of the {@link LogProcessorMXBean} of the metrics, empty to not register it.
+     * metrics.dump.file: json file the metrics and the hits of every pattern are written to, not written by
+     * default.
+     * metrics.dump.interval.millis: interval at which the metrics file is written.
+     */
+    private void configure(Properties properties) {
+        this.reorderIntervalMillis = Long.parseLong(properties.getProperty("patterns.reorder.interval.millis", "10000"));
+        this.refreshIntervalMillis = Long.parseLong(properties.getProperty("patterns.refresh.interval.millis", "60000"));
+        this.refreshMaxRemovedRatio = Double.parseDouble(properties.getProperty("patterns.refresh.max.removed.ratio", "0.5"));
+        if (refreshMaxRemovedRatio < 0 || refreshMaxRemovedRatio > 1) {
+            throw new IllegalArgumentException("patterns.refresh.max.removed.ratio should be between 0 and 1 : "
+                    + refreshMaxRemovedRatio);
+        }
+        this.refreshRemovalConfirmations = Integer.parseInt(
+                properties.getProperty("patterns.refresh.removal.confirmations", "3"));
+        if (refreshRemovalConfirmations < 0) {
+            throw new IllegalArgumentException("patterns.refresh.removal.confirmations should not be negative : "
+                    + refreshRemovalConfirmations);
+        }
+        this.batchParallelism = Integer.parseInt(properties.getProperty("batch.parallelism",
+                String.valueOf(Runtime.getRuntime().availableProcessors())));
+        if (batchParallelism < 1) {
+            throw new IllegalArgumentException("batch.parallelism should be at least 1 : " + batchParallelism);
+        }
+        this.batchVirtualThreads = Boolean.parseBoolean(properties.getProperty("batch.virtual.threads", "false"));
+        int negativeCacheSize = Integer.parseInt(properties.getProperty("cache.negative.size", "4096"));
+        if (negativeCacheSize < 0) {
+            throw new IllegalArgumentException("cache.negative.size should not be negative : " + negativeCacheSize);
+        }
+        this.negativeCache = negativeCacheSize > 0 ? new NegativeCache(negativeCacheSize) : null;
+        if (Boolean.parseBoolean(properties.getProperty("metrics.enabled", "true"))) {
+            this.metrics = new MatchMetrics(this);
+            String jmxName = properties.getProperty("metrics.jmx.name", "default");
+            if (!jmxName.isEmpty()) {
+                try {
+                    this.metricsName = new ObjectName("com.github.logtrail.tools:type=LogProcessor,name=" + ObjectName.quote(jmxName));
+                } catch (MalformedObjectNameException e) {
+                    throw new IllegalArgumentException("Invalid metrics.jmx.name : " + jmxName, e);
+                }
+            }
+            String dumpFile = properties.getProperty("metrics.dump.file");
+            this.metricsFile = dumpFile != null && !dumpFile.isEmpty() ? Paths.get(dumpFile) : null;
+            this.metricsDumpIntervalMillis = Long.parseLong(properties.getProperty("metrics.dump.interval.millis", "60000"));
+        }
     }
 
     public void init() {
-        List<LogPattern> logPatterns = fetchLogPatterns();
-        LOGGER.info("Fetched {} logPatterns from elasticsearch server", logPatterns.size());
+        List<LogPattern> logPatterns;
+        if (bundleFile != null) {
+            try {
+                bundleModified = Files.getLastModifiedTime(Paths.get(bundleFile));
+                logPatterns = loadLogPatterns(bundleFile);
+            } catch (IOException e) {
+                LOGGER.error("Exception while loading patterns from {}", bundleFile, e);
+                logPatterns = new ArrayList<>();
+            }
+            LOGGER.info("Loaded {} logPatterns from {}", logPatterns.size(), bundleFile);
+        } else {
+            logPatterns = fetchLogPatterns();
+            LOGGER.info("Fetched {} logPatterns from elasticsearch server", logPatterns.size());
+        }
+        init(logPatterns);
+        if (refreshIntervalMillis > 0 && refreshTask == null) {
+            refreshTask = schedule(this::refresh, refreshIntervalMillis);
+        }
+        registerMetrics();
+    }
 
-        //populate map
-        contextToPatternsMap = new HashMap<>();
+    private synchronized void registerMetrics() {
+        if (metricsName != null && !metricsRegistered) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, metricsName);
+                metricsRegistered = true;
+            } catch (InstanceAlreadyExistsException e) {
+                LOGGER.warn("Metrics {} are already registered by another processor, set metrics.jmx.name", metricsName);
+                metricsName = null;
+            } catch (JMException e) {
+                LOGGER.error("Exception while registering metrics {}", metricsName, e);
+                metricsName = null;
+            }
+        }
+        if (metricsFile != null && metricsDumpIntervalMillis > 0 && metricsTask == null) {
+            metricsTask = schedule(this::dumpMetrics, metricsDumpIntervalMillis);
+        }
+    }
+
+    private void dumpMetrics() {
+        try {
+            metrics.dump(metricsFile);
+        } catch (Throwable e) {
+            //keep the scheduled dumps running
+            LOGGER.error("Exception while writing metrics to {}", metricsFile, e);
+        }
+    }
+
+    //package-private to load patterns from other sources like benchmarks
+    void init(List<LogPattern> logPatterns) {
+        Map<String, LogPattern> patternsById = new LinkedHashMap<>();
         for (LogPattern logPattern : logPatterns) {
+            //statements with the same context and message have the same id, the first one matches first
+            patternsById.putIfAbsent(logPattern.getId(), logPattern);
+        }
+        publish(patternsById);
+        lastRefreshMillis = System.currentTimeMillis();
+        if (reorderIntervalMillis > 0 && reorderTask == null) {
+            reorderTask = schedule(this::reorder, reorderIntervalMillis);
+        }
+    }
+
+    //Builds a new snapshot of the patterns and swaps it in. Contexts whose patterns did not change keep
+    //their index, ordering and hit counters
+    private synchronized void publish(Map<String, LogPattern> patternsById) {
+        //populate map
+        Map<String, List<LogPattern>> patternsByContext = new HashMap<>();
+        for (LogPattern logPattern : patternsById.values()) {
             //pre-compile pattern
             if (logPattern.getMessageRegEx() != null) {
-                logPattern.setPattern(Pattern.compile(logPattern.getMessageRegEx()));
+                logPattern.prepare();
             } else {
                 LOGGER.debug("Null message for pattern :" + logPattern);
             }
-            List<LogPattern> patternsForContext = contextToPatternsMap.get(logPattern.getContext());
+            List<LogPattern> patternsForContext = patternsByContext.get(logPattern.getContext());
             if (patternsForContext == null) {
                 patternsForContext = new ArrayList<>();
-                contextToPatternsMap.put(logPattern.getContext(), patternsForContext);
+                patternsByContext.put(logPattern.getContext(), patternsForContext);
             }
             patternsForContext.add(logPattern);
         }
+        Map<String, ContextPatterns> previous = contextToPatternsMap;
+        Map<String, ContextPatterns> patternsMap = new HashMap<>();
+        for (Map.Entry<String, List<LogPattern>> entry : patternsByContext.entrySet()) {
+            ContextPatterns patternsForContext = previous.get(entry.getKey());
+            if (patternsForContext == null || !patternsForContext.hasPatterns(entry.getValue())) {
+                ContextPatterns previousPatterns = patternsForContext;
+                patternsForContext = new ContextPatterns(entry.getValue());
+                if (previousPatterns != null) {
+                    patternsForContext.inheritHits(previousPatterns);
+                }
+            }
+            patternsMap.put(entry.getKey(), patternsForContext);
+        }
+        loadedPatterns = patternsById;
+        contextToPatternsMap = patternsMap;
+        if (negativeCache != null) {
+            //misses of the previous patterns are not misses of the new ones anymore, see NegativeCache
+            negativeCache.clear();
+        }
     }
 
-    private List<LogPattern> fetchLogPatterns() {
-        List<LogPattern> patterns = new ArrayList<LogPattern>();
+    private synchronized ScheduledFuture<?> schedule(Runnable task, long intervalMillis) {
+        if (executor == null) {
+            executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "logtrail-patterns");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return executor.scheduleWithFixedDelay(task, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Loads the patterns added to, changed in or removed from elasticsearch or the bundle since the last
+     * load, and swaps in a new snapshot of the patterns if there are any. Elasticsearch patterns are diffed
+     * by id, the id being a hash of the context and the regex, and by the hash of their content, and only
+     * the new or changed ones are fetched. The bundle is read again when it is modified. Patterns are not
+     * swapped in if more than patterns.refresh.max.removed.ratio of them would be removed, unless the last
+     * patterns.refresh.removal.confirmations refreshes found the same patterns. Called every
+     * patterns.refresh.interval.millis.
+     */
+    public void refresh() {
+        try {
+            boolean reloaded;
+            synchronized (this) {
+                FileTime modified = bundleFile != null ? Files.getLastModifiedTime(Paths.get(bundleFile)) : null;
+                Map<String, LogPattern> patternsById = bundleFile != null ? refreshFromBundle(modified) :
+                        refreshFromElasticsearch();
+                if (patternsById != null && removesTooMany(patternsById) && !confirmRemoval(patternsById, modified)) {
+                    refreshFailures.incrementAndGet();
+                    return;
+                }
+                rejectedPatterns = null;
+                rejectedBundleModified = null;
+                if (modified != null) {
+                    bundleModified = modified;
+                }
+                reloaded = patternsById != null && reload(patternsById);
+            }
+            lastRefreshMillis = System.currentTimeMillis();
+            if (reloaded) {
+                reloads.incrementAndGet();
+            }
+        } catch (Throwable e) {
+            //keep the scheduled refreshes running, the current patterns stay in use
+            refreshFailures.incrementAndGet();
+            LOGGER.error("Exception while refreshing patterns", e);
+        }
+    }
+
+    //Returns null if the bundle was not modified
+    private Map<String, LogPattern> refreshFromBundle(FileTime modified) throws IOException {
+        if (modified.equals(bundleModified)) {
+            return null;
+        }
+        if (rejectedPatterns != null && modified.equals(rejectedBundleModified)) {
+            //a rejected bundle is not read again until it is modified
+            return rejectedPatterns;
+        }
+        //a bundle that cannot be read is read again at the next refresh
+        List<LogPattern> logPatterns = loadLogPatterns(bundleFile);
+        Map<String, LogPattern> patternsById = new LinkedHashMap<>();
+        for (LogPattern logPattern : logPatterns) {
+            //a pattern with the same id has the same context and regex, keep the compiled one unless its
+            //args or fields changed
+            LogPattern loaded = loadedPatterns.get(logPattern.getId());
+            patternsById.putIfAbsent(logPattern.getId(),
+                    loaded != null && loaded.hasSameContent(logPattern) ? loaded : logPattern);
+        }
+        return patternsById;
+    }
+
+    private Map<String, LogPattern> refreshFromElasticsearch() throws IOException {
+        Map<String, String> hashesById = fetchPatternIds();
+        Map<String, LogPattern> patternsById = new LinkedHashMap<>();
+        for (Map.Entry<String, LogPattern> entry : loadedPatterns.entrySet()) {
+            //a pattern indexed again with other args or fields has the same id and another content hash
+            if (hashesById.containsKey(entry.getKey())
+                    && Objects.equals(hashesById.get(entry.getKey()), entry.getValue().getContentHash())) {
+                patternsById.put(entry.getKey(), entry.getValue());
+            }
+        }
+        List<String> addedIds = new ArrayList<>();
+        for (Map.Entry<String, String> entry : hashesById.entrySet()) {
+            //patterns fetched by a rejected refresh are not fetched again
+            LogPattern rejected = rejectedPatterns != null ? rejectedPatterns.get(entry.getKey()) : null;
+            if (rejected != null && Objects.equals(entry.getValue(), rejected.getContentHash())) {
+                patternsById.putIfAbsent(entry.getKey(), rejected);
+            } else if (!patternsById.containsKey(entry.getKey())) {
+                addedIds.add(entry.getKey());
+            }
+        }
+        for (LogPattern logPattern : fetchLogPatterns(addedIds)) {
+            patternsById.put(logPattern.getId(), logPattern);
+        }
+        return patternsById;
+    }
+
+    //An empty or much smaller set of patterns is more likely a partly written index or bundle than removed patterns
+    private boolean removesTooMany(Map<String, LogPattern> patternsById) {
+        int removed = 0;
+        for (String id : loadedPatterns.keySet()) {
+            if (!patternsById.containsKey(id)) {
+                removed++;
+            }
+        }
+        if (removed > refreshMaxRemovedRatio * loadedPatterns.size()) {
+            LOGGER.warn("Refresh would remove {} of the {} loaded patterns, more than the allowed "
+                    + "ratio of {}", removed, loadedPatterns.size(), refreshMaxRemovedRatio);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Remembers a refresh removing too many patterns and returns true once the last
+     * patterns.refresh.removal.confirmations refreshes, this one included, found the same patterns,
+     * so a deliberate removal is applied while a partly written index or bundle is not.
+     */
+    private boolean confirmRemoval(Map<String, LogPattern> patternsById, FileTime modified) {
+        if (rejectedPatterns != null && rejectedPatterns.keySet().equals(patternsById.keySet())) {
+            rejectedRefreshes++;
+        } else {
+            rejectedRefreshes = 1;
+        }
+        rejectedPatterns = patternsById;
+        rejectedBundleModified = modified;
+        if (refreshRemovalConfirmations > 0 && rejectedRefreshes >= refreshRemovalConfirmations) {
+            LOGGER.info("Applying the removal of patterns found by {} consecutive refreshes", rejectedRefreshes);
+            return true;
+        }
+        return false;
+    }
+
+    private boolean reload(Map<String, LogPattern> patternsById) {
+        int added = 0, removed = 0, changed = 0;
+        for (Map.Entry<String, LogPattern> entry : patternsById.entrySet()) {
+            LogPattern loaded = loadedPatterns.get(entry.getKey());
+            if (loaded == null) {
+                added++;
+            } else if (loaded != entry.getValue()) {
+                changed++;
+            }
+        }
+        for (String id : loadedPatterns.keySet()) {
+            if (!patternsById.containsKey(id)) {
+                removed++;
+            }
+        }
+        if (added == 0 && removed == 0 && changed == 0) {
+            return false;
+        }
+        publish(patternsById);
+        LOGGER.info("Reloaded patterns, {} added, {} removed, {} changed, {} patterns", added, removed, changed,
+                patternsById.size());
+        return true;
+    }
+
+    public long getRefreshIntervalMillis() {
+        return refreshIntervalMillis;
+    }
 
+    /**
+     * @return milliseconds since the patterns were last loaded or found up to date
+     */
+    public long getStalenessMillis() {
+        return System.currentTimeMillis() - lastRefreshMillis;
+    }
+
+    /**
+     * @return number of refreshes that found new or removed patterns
+     */
+    public long getReloadCount() {
+        return reloads.get();
+    }
+
+    public long getRefreshFailureCount() {
+        return refreshFailures.get();
+    }
+
+    public int getPatternCount() {
+        return loadedPatterns.size();
+    }
+
+    /**
+     * @return matching metrics of the processor, null if metrics.enabled is false
+     */
+    public LogProcessorMXBean getMetrics() {
+        return metrics;
+    }
+
+    long getNegativeCacheHits() {
+        return negativeCache != null ? negativeCache.getHits() : 0;
+    }
+
+    int getNegativeCacheSize() {
+        return negativeCache != null ? negativeCache.size() : 0;
+    }
+
+    Map<String, ContextPatterns> getContextPatterns() {
+        return contextToPatternsMap;
+    }
+
+    /**
+     * Orders the patterns of each context by their recent hits, most hit first, so frequent messages are
+     * matched by the first patterns tried. Called every patterns.reorder.interval.millis.
+     */
+    public void reorder() {
         try {
-            String matchQuery = "{\n" +
+            int reordered = 0;
+            for (ContextPatterns patternsForContext : contextToPatternsMap.values()) {
+                if (patternsForContext.reorder()) {
+                    reordered++;
+                }
+            }
+            LOGGER.debug("Reordered patterns of {} contexts", reordered);
+        } catch (Throwable e) {
+            //keep the scheduled reorders running
+            LOGGER.error("Exception while reordering patterns", e);
+        }
+    }
+
+    /**
+     * @return hits of each pattern by context and pattern id, patterns in the order they are tried
+     */
+    public Map<String, Map<String, Long>> getHitCounts() {
+        Map<String, Map<String, Long>> hitCounts = new TreeMap<>();
+        for (Map.Entry<String, ContextPatterns> entry : contextToPatternsMap.entrySet()) {
+            ContextPatterns patternsForContext = entry.getValue();
+            Map<String, Long> patternHits = new LinkedHashMap<>();
+            for (int index : patternsForContext.getOrder()) {
+                patternHits.put(patternsForContext.get(index).getId(), patternsForContext.getHits(index));
+            }
+            hitCounts.put(entry.getKey(), patternHits);
+        }
+        return hitCounts;
+    }
+
+    private List<LogPattern> loadLogPatterns(String bundleFile) throws IOException {
+        List<LogPattern> patterns = new ArrayList<>();
+        for (PatternRecord record : PatternBundleReader.read(Paths.get(bundleFile))) {
+            if (indexPattern != null && !indexPattern.equals(record.getIndexPattern())) {
+                continue;
+            }
+            LogPattern pattern = new LogPattern();
+            pattern.setId(record.getId());
+            pattern.setContext(record.getContext());
+            //compiled by init
+            pattern.messageRegEx = record.getMessageRegEx();
+            pattern.setSegments(record.getSegments());
+            pattern.setFields(record.getFields());
+            pattern.setArgs(record.getArgs());
+            patterns.add(pattern);
+        }
+        return patterns;
+    }
+
+    private String patternsQuery() {
+        String matchQuery = "{\n" +
+                "    \"query\": {\n" +
+                "        \"match_all\": {}\n" +
+                "    }\n" +
+                "}";
+        if (indexPattern != null) {
+            matchQuery = "{\n" +
                     "    \"query\": {\n" +
-                    "        \"match_all\": {}\n" +
+                                    "\"term\" : {\n" +
+                                    "\"indexPattern\" :\"" + indexPattern + "\"" +
+                                    "}\n" +
                     "    }\n" +
                     "}";
-            if (indexPattern != null) {
-                matchQuery = "{\n" +
-                        "    \"query\": {\n" +
-                                        "\"term\" : {\n" +
-                                        "\"indexPattern\" :\"" + indexPattern + "\"" +
-                                        "}\n" +
-                        "    }\n" +
-                        "}";
-            }
+        }
+        return matchQuery;
+    }
+
+    private List<LogPattern> fetchLogPatterns() {
+        List<LogPattern> patterns = new ArrayList<LogPattern>();
+
+        try {
+            String matchQuery = patternsQuery();
             Search search = new Search.Builder(matchQuery).addIndex(INDEX_NAME).addType(TYPE_NAME)
                     .setParameter(Parameters.SCROLL, "1m")
                     .setParameter(Parameters.SIZE, 500)
@@ -114,82 +601,394 @@ public class LogProcessor {
         return patterns;
     }
 
+    //Ids of all the patterns mapped to their content hash, null for patterns indexed without one, without the
+    //rest of their source. Fails instead of returning part of the ids
+    private Map<String, String> fetchPatternIds() throws IOException {
+        JsonObject request = new JsonParser().parse(patternsQuery()).getAsJsonObject();
+        JsonArray source = new JsonArray();
+        source.add("contentHash");
+        request.add("_source", source);
+        Search search = new Search.Builder(request.toString()).addIndex(INDEX_NAME).addType(TYPE_NAME)
+                .setParameter(Parameters.SCROLL, "1m")
+                .setParameter(Parameters.SIZE, FETCH_SIZE)
+                .build();
+        Map<String, String> ids = new HashMap<>();
+        JestResult result = elasticClient.execute(search);
+        while (true) {
+            if (!result.isSucceeded()) {
+                throw new IOException("Exception while fetching pattern ids " + result.getErrorMessage());
+            }
+            JsonArray hits = result.getJsonObject().getAsJsonObject("hits").getAsJsonArray("hits");
+            for (JsonElement element : hits) {
+                JsonObject hit = element.getAsJsonObject();
+                JsonElement contentHash = hit.has("_source") ? hit.getAsJsonObject("_source").get("contentHash") : null;
+                ids.put(hit.get("_id").getAsString(), contentHash != null && !contentHash.isJsonNull() ?
+                        contentHash.getAsString() : null);
+            }
+            if (hits.size() == 0 || !result.getJsonObject().has("_scroll_id")) {
+                break;
+            }
+            String scrollId = result.getJsonObject().get("_scroll_id").getAsString();
+            result = elasticClient.execute(new SearchScroll.Builder(scrollId, "1m").build());
+        }
+        return ids;
+    }
+
+    private List<LogPattern> fetchLogPatterns(List<String> ids) throws IOException {
+        List<LogPattern> patterns = new ArrayList<>();
+        for (int start = 0; start < ids.size(); start += FETCH_SIZE) {
+            List<String> batch = ids.subList(start, Math.min(ids.size(), start + FETCH_SIZE));
+            JsonArray values = new JsonArray();
+            batch.forEach(values::add);
+            JsonObject idsQuery = new JsonObject();
+            idsQuery.add("values", values);
+            JsonObject query = new JsonObject();
+            query.add("ids", idsQuery);
+            JsonObject request = new JsonObject();
+            request.add("query", query);
+            Search search = new Search.Builder(request.toString()).addIndex(INDEX_NAME).addType(TYPE_NAME)
+                    .setParameter(Parameters.SIZE, batch.size())
+                    .build();
+            SearchResult result = elasticClient.execute(search);
+            if (!result.isSucceeded()) {
+                throw new IOException("Exception while fetching patterns " + result.getErrorMessage());
+            }
+            result.getHits(LogPattern.class).forEach(hit -> patterns.add(hit.source));
+        }
+        return patterns;
+    }
 
+    /**
+     * Matches the message against the patterns of its context, then against the patterns of the default
+     * context. A message of a context without patterns is matched against the default context only.
+     *
+     * @return the fields of the matching pattern, null if no pattern matched
+     */
     public Map<String, Object> process(String message, String context) {
-        Map<String, Object> parsedInfo = null;
-        if (message != null && context != null) {
-            try {
-                List<LogPattern> patternsForContext = contextToPatternsMap.get(context);
-                if (patternsForContext == null) {
-                    patternsForContext = contextToPatternsMap.get("default-context");
+        MatchResult result = RESULTS.get();
+        return process(message, context, result) ? result.toMap() : null;
+    }
+
+    /**
+     * Matches the message like {@link #process(String, String)}, filling a result that can be reused for
+     * the next message instead of returning a new map.
+     *
+     * @return true if the message matched a pattern
+     */
+    public boolean process(String message, String context, MatchResult result) {
+        //the same snapshot for the context and the default context
+        Map<String, ContextPatterns> patternsMap = contextToPatternsMap;
+        return process(message, context, patternsMap.get(context), patternsMap.get("default-context"), result);
+    }
+
+    private boolean process(String message, String context, ContextPatterns contextPatterns,
+                            ContextPatterns defaultPatterns, MatchResult result) {
+        result.reset(message);
+        if (message == null || context == null) {
+            return false;
+        }
+        long start = metrics != null ? System.nanoTime() : 0;
+        result.attempts = 0;
+        boolean matched = match(message, context, contextPatterns, defaultPatterns, result);
+        if (metrics != null) {
+            metrics.processed(matched, result.attempts, System.nanoTime() - start);
+        }
+        return matched;
+    }
+
+    //Matches the message against the patterns of its context, then of the default context
+    private boolean match(String message, String context, ContextPatterns contextPatterns,
+                          ContextPatterns defaultPatterns, MatchResult result) {
+        try {
+            ContextPatterns patternsForContext = contextPatterns;
+            if (patternsForContext == null) {
+                if (metrics != null) {
+                    metrics.unknownContext();
                 }
-                if (patternsForContext != null) {
-                    parsedInfo = match(message, patternsForContext);
-                    if (parsedInfo == null) {
-                        //check in default context
-                        patternsForContext = contextToPatternsMap.get("default-context");
-                        if (patternsForContext != null) {
-                            match(message, patternsForContext);
-                        }
-                        LOGGER.debug("Cannot find match for {} in context {}", message, context);
-                    }
+                patternsForContext = defaultPatterns;
+            }
+            if (patternsForContext == null) {
+                return false;
+            }
+            if (negativeCache != null && negativeCache.isMiss(context, message, contextPatterns, defaultPatterns)) {
+                patternsForContext.recordMiss();
+                if (metrics != null) {
+                    metrics.contextMiss();
+                    metrics.defaultMatch(false);
                 }
-            } catch (Throwable e) {
-                //log any error during processing and return empty parsedInfo
-                LOGGER.error("Exception while processing message {} in context {} ", message, context, e);
-            }
-        }
-        return parsedInfo;
-    }
-
-    private Map<String, Object> match(String message, List<LogPattern> patternsForContext) {
-        Map<String, Object> parsedInfo = null;
-        for (LogPattern pattern : patternsForContext) {
-            Matcher matcher = pattern.getPattern().matcher(message);
-            if (matcher.matches()) {
-                parsedInfo = new LinkedHashMap<>();
-                parsedInfo.put("patternId", pattern.getId());
-                List<Integer> matchIndices = new ArrayList<>();
-                for (int i = 1; i <= matcher.groupCount(); i++) {
-                    if (pattern.getFields().size() > (i-1)) {
-                        String argName = pattern.getFields().get(i - 1);
-                        String value = matcher.group(i);
-                        if (NumberUtils.isNumber(value)) {
-                            Number number = NumberUtils.createNumber(value);
-                            parsedInfo.put(argName, number);
-                        } else {
-                            parsedInfo.put(argName, value);
+                return false;
+            }
+            if (match(message, patternsForContext, result)) {
+                return true;
+            }
+            patternsForContext.recordMiss();
+            if (metrics != null) {
+                metrics.contextMiss();
+            }
+            //check in default context, unless the context was unknown and it was just checked
+            boolean defaultMatched = false;
+            if (defaultPatterns != null && defaultPatterns != patternsForContext) {
+                defaultMatched = match(message, defaultPatterns, result);
+            }
+            if (metrics != null) {
+                metrics.defaultMatch(defaultMatched);
+            }
+            if (defaultMatched) {
+                return true;
+            }
+            if (negativeCache != null) {
+                negativeCache.addMiss(context, message, contextPatterns, defaultPatterns);
+            }
+            LOGGER.debug("Cannot find match for {} in context {}", message, context);
+        } catch (Throwable e) {
+            //log any error during processing and return no match
+            LOGGER.error("Exception while processing message {} in context {} ", message, context, e);
+            result.reset(message);
+        }
+        return false;
+    }
+
+    /**
+     * Processes a batch of messages like {@link #process(String, String)}, in parallel on the batch executor.
+     * The messages are grouped by context, so the patterns of each context are looked up once per batch, and
+     * all the messages are matched against the same snapshot of the patterns.
+     *
+     * @param contexts context of each message
+     * @return the result of each message in input order, null for messages that did not match
+     */
+    public List<Map<String, Object>> processBatch(String[] messages, String[] contexts) {
+        Object[] parsedInfos = new Object[messages.length];
+        processBatch(messages, contexts, null, parsedInfos);
+        List<Map<String, Object>> results = new ArrayList<>(messages.length);
+        for (Object parsedInfo : parsedInfos) {
+            @SuppressWarnings("unchecked")
+            Map<String, Object> result = (Map<String, Object>) parsedInfo;
+            results.add(result);
+        }
+        return results;
+    }
+
+    /**
+     * Processes a batch of messages like {@link #process(String, String, MatchResult)}, filling the result of
+     * each message, which can be reused for the next batch.
+     *
+     * @param results result of each message, in input order
+     */
+    public void processBatch(String[] messages, String[] contexts, MatchResult[] results) {
+        if (results.length != messages.length) {
+            throw new IllegalArgumentException("Expected " + messages.length + " results : " + results.length);
+        }
+        processBatch(messages, contexts, results, null);
+    }
+
+    //Fills the results, or the parsed infos with a result per task when results is null
+    private void processBatch(String[] messages, String[] contexts, MatchResult[] results, Object[] parsedInfos) {
+        if (contexts.length != messages.length) {
+            throw new IllegalArgumentException("Expected " + messages.length + " contexts : " + contexts.length);
+        }
+        int count = messages.length;
+        //group the messages by context, order holds the messages of each group from groupStarts[group]
+        Map<String, Integer> groups = new HashMap<>();
+        List<String> groupContexts = new ArrayList<>();
+        int[] groupOf = new int[count];
+        for (int i = 0; i < count; i++) {
+            Integer group = groups.get(contexts[i]);
+            if (group == null) {
+                group = groupContexts.size();
+                groups.put(contexts[i], group);
+                groupContexts.add(contexts[i]);
+            }
+            groupOf[i] = group;
+        }
+        int[] groupStarts = new int[groupContexts.size() + 1];
+        for (int i = 0; i < count; i++) {
+            groupStarts[groupOf[i] + 1]++;
+        }
+        for (int group = 0; group < groupContexts.size(); group++) {
+            groupStarts[group + 1] += groupStarts[group];
+        }
+        int[] order = new int[count];
+        int[] next = Arrays.copyOf(groupStarts, groupContexts.size());
+        for (int i = 0; i < count; i++) {
+            order[next[groupOf[i]]++] = i;
+        }
+
+        Map<String, ContextPatterns> patternsMap = contextToPatternsMap;
+        ContextPatterns defaultPatterns = patternsMap.get("default-context");
+        //split the groups in chunks, enough for every thread to get a few
+        int chunkSize = Math.max(MIN_BATCH_CHUNK, (count + 4 * batchParallelism - 1) / (4 * batchParallelism));
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int group = 0; group < groupContexts.size(); group++) {
+            String context = groupContexts.get(group);
+            ContextPatterns contextPatterns = context != null ? patternsMap.get(context) : null;
+            for (int start = groupStarts[group]; start < groupStarts[group + 1]; start += chunkSize) {
+                int chunkStart = start, chunkEnd = Math.min(groupStarts[group + 1], start + chunkSize);
+                tasks.add(() -> {
+                    MatchResult taskResult = results == null ? new MatchResult() : null;
+                    for (int k = chunkStart; k < chunkEnd; k++) {
+                        int i = order[k];
+                        MatchResult result = results != null ? results[i] : taskResult;
+                        boolean matched = process(messages[i], contexts[i], contextPatterns, defaultPatterns, result);
+                        if (parsedInfos != null) {
+                            parsedInfos[i] = matched ? result.toMap() : null;
                         }
-                        matchIndices.add(matcher.start(i));
-                        matchIndices.add(matcher.end(i));
-                    } else {
-                        LOGGER.warn("Cannot find fields for message {} ", message);
                     }
+                    return null;
+                });
+            }
+        }
+        if (tasks.size() == 1 || batchParallelism == 1) {
+            for (Callable<Void> task : tasks) {
+                runTask(task);
+            }
+            return;
+        }
+        try {
+            for (Future<Void> future : batchExecutor().invokeAll(tasks)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while processing a batch", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Exception while processing a batch", e.getCause());
+        }
+    }
+
+    private static void runTask(Callable<Void> task) {
+        try {
+            task.call();
+        } catch (Exception e) {
+            throw new IllegalStateException("Exception while processing a batch", e);
+        }
+    }
+
+    //Virtual threads when configured and available (java 21+), a fork join pool otherwise
+    private synchronized ExecutorService batchExecutor() {
+        if (batchExecutor == null) {
+            if (batchVirtualThreads) {
+                try {
+                    batchExecutor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                    LOGGER.info("Processing batches on virtual threads");
+                } catch (ReflectiveOperationException e) {
+                    LOGGER.warn("Virtual threads are not available, processing batches on a fork join pool");
                 }
-                if (matcher.groupCount() > 0) {
-                    parsedInfo.put("matchIndices", matchIndices);
-                }
-                break;
             }
+            if (batchExecutor == null) {
+                batchExecutor = new ForkJoinPool(batchParallelism);
+            }
+        }
+        return batchExecutor;
+    }
+
+    //Patterns without groups are looked up by message, then only the candidates selected by the index of
+    //the context are matched, most hit patterns first
+    private static boolean match(String message, ContextPatterns patternsForContext, MatchResult result) {
+        int exact = patternsForContext.exactMatch(message);
+        if (exact != -1) {
+            result.matched(patternsForContext.get(exact), 0);
+            patternsForContext.recordHit(exact);
+            return true;
+        }
+        ContextPatterns.Candidates candidates = result.candidates;
+        patternsForContext.select(message, candidates);
+        for (int i = 0; i < candidates.size(); i++) {
+            int candidate = candidates.get(i);
+            LogPattern pattern = patternsForContext.get(candidate);
+            if (pattern.getPattern() == null || (pattern.template != null && !pattern.template.couldMatch(message))) {
+                continue;
+            }
+            result.attempts++;
+            if (matchOffsets(pattern, message, result)) {
+                patternsForContext.recordHit(candidate);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Matches templates of the analyzer with the segment matcher, other regexes with java.util.regex.
+     * Fills the offsets of the result with the start and end of each group if the whole message matches.
+     */
+    private static boolean matchOffsets(LogPattern pattern, String message, MatchResult result) {
+        if (pattern.segmentMatcher != null) {
+            int groupCount = pattern.segmentMatcher.getGroupCount();
+            if (!pattern.segmentMatcher.match(message, result.offsets(groupCount))) {
+                return false;
+            }
+            result.matched(pattern, groupCount);
+            return true;
+        }
+        Matcher matcher = pattern.matcher(message);
+        if (!matcher.matches()) {
+            return false;
         }
-        return parsedInfo;
+        int groupCount = matcher.groupCount();
+        int[] offsets = result.offsets(groupCount);
+        for (int i = 1; i <= groupCount; i++) {
+            offsets[2 * i - 2] = matcher.start(i);
+            offsets[2 * i - 1] = matcher.end(i);
+        }
+        result.matched(pattern, groupCount);
+        return true;
     }
 
     public void cleanup() {
-        elasticClient.shutdownClient();
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        synchronized (this) {
+            if (metricsRegistered) {
+                try {
+                    ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsName);
+                    metricsRegistered = false;
+                } catch (JMException e) {
+                    LOGGER.warn("Exception while unregistering metrics {}", metricsName, e);
+                }
+            }
+        }
+        synchronized (this) {
+            if (batchExecutor != null) {
+                batchExecutor.shutdown();
+            }
+        }
+        if (elasticClient != null) {
+            elasticClient.shutdownClient();
+        }
     }
 
-    private static class LogPattern {
+    static class LogPattern {
         private String messageRegEx;
+        private List<String> segments;
         private List<String> args;
         private List<String> fields;
         private String context;
+        //hash of the indexed document, null for patterns of the bundle or indexed by older analyzers
+        private String contentHash;
         @JestId
         private String id;
-        private Pattern pattern;
+        private transient Pattern pattern;
+        //literal segments of the regex, null if it was not created by the analyzer
+        private transient MessageTemplate template;
+        private transient SegmentMatcher segmentMatcher;
+        //matchers of the regex reused per thread, created on first use
+        private transient volatile ThreadLocal<Matcher> matchers;
+        private transient boolean prepared;
+
+        //Compiles the regex, once even when the pattern is kept across reloads
+        void prepare() {
+            if (!prepared) {
+                setPattern(Pattern.compile(messageRegEx));
+                template = MessageTemplate.parse(messageRegEx);
+                segmentMatcher = template != null ? new SegmentMatcher(template) : null;
+                prepared = true;
+            }
+        }
 
         public void setPattern(Pattern pattern) {
             this.pattern = pattern;
+            this.matchers = null;
         }
 
         public String getMessageRegEx() {
@@ -198,7 +997,16 @@ public class LogProcessor {
 
         public void setMessageRegEx(String messageRegEx) {
             this.messageRegEx = messageRegEx;
-            pattern = Pattern.compile(messageRegEx);
+            setPattern(Pattern.compile(messageRegEx));
+            prepared = false;
+        }
+
+        public List<String> getSegments() {
+            return segments;
+        }
+
+        public void setSegments(List<String> segments) {
+            this.segments = segments;
         }
 
         public List<String> getArgs() {
@@ -229,6 +1037,31 @@ public class LogProcessor {
             return pattern;
         }
 
+        String getContentHash() {
+            return contentHash;
+        }
+
+        //Same regex, segments, args and fields, the parts of the pattern used to match and to name the args
+        boolean hasSameContent(LogPattern other) {
+            return Objects.equals(messageRegEx, other.messageRegEx) && Objects.equals(segments, other.segments)
+                    && Objects.equals(args, other.args) && Objects.equals(fields, other.fields)
+                    && Objects.equals(context, other.context);
+        }
+
+        Matcher matcher(String message) {
+            ThreadLocal<Matcher> threadMatchers = matchers;
+            if (threadMatchers == null) {
+                Pattern compiled = pattern;
+                threadMatchers = ThreadLocal.withInitial(() -> compiled.matcher(""));
+                matchers = threadMatchers;
+            }
+            return threadMatchers.get().reset(message);
+        }
+
+        MessageTemplate getTemplate() {
+            return template;
+        }
+
         @Override
         public String toString() {
             return "LogPattern{" +
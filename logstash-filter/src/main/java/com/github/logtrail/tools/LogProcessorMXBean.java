@@ -0,0 +1,102 @@
+package com.github.logtrail.tools;
+
+import java.util.Map;
+
+/**
+ * Matching metrics of a {@link LogProcessor}, registered as com.github.logtrail.tools:type=LogProcessor,name=
+ * metrics.jmx.name. Events are the messages processed with a message and a context. Hits of a context count
+ * after a reload that changed its patterns, as long as the patterns keep their id.
+ */
+public interface LogProcessorMXBean {
+    long getEvents();
+
+    /**
+     * @return events matched by a pattern of their context or of the default context
+     */
+    long getMatched();
+
+    /**
+     * @return events whose context has no patterns, they are matched against the default context
+     */
+    long getUnknownContexts();
+
+    /**
+     * @return events not matched by the patterns of their context
+     */
+    long getContextMisses();
+
+    /**
+     * @return events not matched by their context but matched by the default context
+     */
+    long getDefaultHits();
+
+    /**
+     * @return events matched neither by their context nor by the default context
+     */
+    long getDefaultMisses();
+
+    /**
+     * @return default misses per event
+     */
+    double getMissRate();
+
+    /**
+     * @return patterns matched against a message per event, exact lookups of patterns without placeholders
+     * are not attempts
+     */
+    double getMeanAttempts();
+
+    long getMaxAttempts();
+
+    Map<String, Long> getAttemptsHistogram();
+
+    double getMeanLatencyNanos();
+
+    long getLatencyP50Nanos();
+
+    long getLatencyP99Nanos();
+
+    long getLatencyP999Nanos();
+
+    long getMaxLatencyNanos();
+
+    Map<String, Long> getLatencyHistogram();
+
+    /**
+     * @return hits of the patterns of each context
+     */
+    Map<String, Long> getHitsByContext();
+
+    /**
+     * @return events of each context its patterns did not match
+     */
+    Map<String, Long> getMissesByContext();
+
+    int getPatternCount();
+
+    /**
+     * @return patterns that never matched a message
+     */
+    int getDeadPatternCount();
+
+    /**
+     * @return hits of the most hit patterns, as context/pattern id
+     */
+    Map<String, Long> getTopPatternHits();
+
+    /**
+     * @return events found in the cache of unmatched messages, they count as context and default misses
+     */
+    long getNegativeCacheHits();
+
+    /**
+     * @return unmatched messages in the cache
+     */
+    int getNegativeCacheSize();
+
+    long getStalenessMillis();
+
+    long getReloadCount();
+
+    long getRefreshFailureCount();
+}
@@ -0,0 +1,267 @@
+package com.github.logtrail.tools;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of a LogProcessor, updated by the threads processing messages with LongAdders only. Hits of the
+ * patterns and misses of the contexts are counted by their ContextPatterns, without map lookups.
+ */
+class MatchMetrics implements LogProcessorMXBean {
+    private static final int TOP_PATTERNS = 100;
+    private final LogProcessor logProcessor;
+    private final LongAdder events = new LongAdder();
+    private final LongAdder matched = new LongAdder();
+    private final LongAdder unknownContexts = new LongAdder();
+    private final LongAdder contextMisses = new LongAdder();
+    private final LongAdder defaultHits = new LongAdder();
+    private final LongAdder defaultMisses = new LongAdder();
+    private final Histogram attempts = new Histogram();
+    private final Histogram latency = new Histogram();
+
+    MatchMetrics(LogProcessor logProcessor) {
+        this.logProcessor = logProcessor;
+    }
+
+    void unknownContext() {
+        unknownContexts.increment();
+    }
+
+    void contextMiss() {
+        contextMisses.increment();
+    }
+
+    void defaultMatch(boolean hit) {
+        (hit ? defaultHits : defaultMisses).increment();
+    }
+
+    void processed(boolean hit, int patternAttempts, long nanos) {
+        events.increment();
+        if (hit) {
+            matched.increment();
+        }
+        attempts.record(patternAttempts);
+        latency.record(nanos);
+    }
+
+    @Override
+    public long getEvents() {
+        return events.sum();
+    }
+
+    @Override
+    public long getMatched() {
+        return matched.sum();
+    }
+
+    @Override
+    public long getUnknownContexts() {
+        return unknownContexts.sum();
+    }
+
+    @Override
+    public long getContextMisses() {
+        return contextMisses.sum();
+    }
+
+    @Override
+    public long getDefaultHits() {
+        return defaultHits.sum();
+    }
+
+    @Override
+    public long getDefaultMisses() {
+        return defaultMisses.sum();
+    }
+
+    @Override
+    public double getMissRate() {
+        long eventCount = getEvents();
+        return eventCount == 0 ? 0 : (double) getDefaultMisses() / eventCount;
+    }
+
+    @Override
+    public double getMeanAttempts() {
+        return attempts.getMean();
+    }
+
+    @Override
+    public long getMaxAttempts() {
+        return attempts.getMax();
+    }
+
+    @Override
+    public Map<String, Long> getAttemptsHistogram() {
+        return attempts.getBuckets();
+    }
+
+    @Override
+    public double getMeanLatencyNanos() {
+        return latency.getMean();
+    }
+
+    @Override
+    public long getLatencyP50Nanos() {
+        return latency.getPercentile(50);
+    }
+
+    @Override
+    public long getLatencyP99Nanos() {
+        return latency.getPercentile(99);
+    }
+
+    @Override
+    public long getLatencyP999Nanos() {
+        return latency.getPercentile(99.9);
+    }
+
+    @Override
+    public long getMaxLatencyNanos() {
+        return latency.getMax();
+    }
+
+    @Override
+    public Map<String, Long> getLatencyHistogram() {
+        return latency.getBuckets();
+    }
+
+    @Override
+    public Map<String, Long> getHitsByContext() {
+        Map<String, Long> hits = new TreeMap<>();
+        for (Map.Entry<String, ContextPatterns> entry : logProcessor.getContextPatterns().entrySet()) {
+            ContextPatterns patternsForContext = entry.getValue();
+            long contextHits = 0;
+            for (int i = 0; i < patternsForContext.size(); i++) {
+                contextHits += patternsForContext.getHits(i);
+            }
+            hits.put(entry.getKey(), contextHits);
+        }
+        return hits;
+    }
+
+    @Override
+    public Map<String, Long> getMissesByContext() {
+        Map<String, Long> misses = new TreeMap<>();
+        for (Map.Entry<String, ContextPatterns> entry : logProcessor.getContextPatterns().entrySet()) {
+            misses.put(entry.getKey(), entry.getValue().getMisses());
+        }
+        return misses;
+    }
+
+    @Override
+    public int getPatternCount() {
+        return logProcessor.getPatternCount();
+    }
+
+    @Override
+    public int getDeadPatternCount() {
+        int dead = 0;
+        for (ContextPatterns patternsForContext : logProcessor.getContextPatterns().values()) {
+            for (int i = 0; i < patternsForContext.size(); i++) {
+                if (patternsForContext.getHits(i) == 0) {
+                    dead++;
+                }
+            }
+        }
+        return dead;
+    }
+
+    @Override
+    public Map<String, Long> getTopPatternHits() {
+        //smallest of the top patterns first
+        PriorityQueue<Map.Entry<String, Long>> top = new PriorityQueue<>(Map.Entry.comparingByValue());
+        for (Map.Entry<String, ContextPatterns> entry : logProcessor.getContextPatterns().entrySet()) {
+            ContextPatterns patternsForContext = entry.getValue();
+            for (int i = 0; i < patternsForContext.size(); i++) {
+                long hits = patternsForContext.getHits(i);
+                if (hits > 0 && (top.size() < TOP_PATTERNS || hits > top.peek().getValue())) {
+                    top.add(new AbstractMap.SimpleImmutableEntry<>(entry.getKey() + "/" + patternsForContext.get(i).getId(), hits));
+                    if (top.size() > TOP_PATTERNS) {
+                        top.poll();
+                    }
+                }
+            }
+        }
+        List<Map.Entry<String, Long>> sorted = new ArrayList<>(top);
+        sorted.sort(Map.Entry.<String, Long>comparingByValue().reversed());
+        Map<String, Long> topHits = new LinkedHashMap<>();
+        for (Map.Entry<String, Long> entry : sorted) {
+            topHits.put(entry.getKey(), entry.getValue());
+        }
+        return topHits;
+    }
+
+    @Override
+    public long getNegativeCacheHits() {
+        return logProcessor.getNegativeCacheHits();
+    }
+
+    @Override
+    public int getNegativeCacheSize() {
+        return logProcessor.getNegativeCacheSize();
+    }
+
+    @Override
+    public long getStalenessMillis() {
+        return logProcessor.getStalenessMillis();
+    }
+
+    @Override
+    public long getReloadCount() {
+        return logProcessor.getReloadCount();
+    }
+
+    @Override
+    public long getRefreshFailureCount() {
+        return logProcessor.getRefreshFailureCount();
+    }
+
+    /**
+     * Writes the metrics and the hits of every pattern as json, replacing the file atomically.
+     */
+    void dump(Path file) throws IOException {
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("timestamp", System.currentTimeMillis());
+        snapshot.put("events", getEvents());
+        snapshot.put("matched", getMatched());
+        snapshot.put("unknownContexts", getUnknownContexts());
+        snapshot.put("contextMisses", getContextMisses());
+        snapshot.put("defaultHits", getDefaultHits());
+        snapshot.put("defaultMisses", getDefaultMisses());
+        snapshot.put("missRate", getMissRate());
+        snapshot.put("meanAttempts", getMeanAttempts());
+        snapshot.put("maxAttempts", getMaxAttempts());
+        snapshot.put("attemptsHistogram", getAttemptsHistogram());
+        snapshot.put("meanLatencyNanos", getMeanLatencyNanos());
+        snapshot.put("latencyP50Nanos", getLatencyP50Nanos());
+        snapshot.put("latencyP99Nanos", getLatencyP99Nanos());
+        snapshot.put("latencyP999Nanos", getLatencyP999Nanos());
+        snapshot.put("maxLatencyNanos", getMaxLatencyNanos());
+        snapshot.put("latencyHistogram", getLatencyHistogram());
+        snapshot.put("patternCount", getPatternCount());
+        snapshot.put("deadPatternCount", getDeadPatternCount());
+        snapshot.put("negativeCacheHits", getNegativeCacheHits());
+        snapshot.put("negativeCacheSize", getNegativeCacheSize());
+        snapshot.put("stalenessMillis", getStalenessMillis());
+        snapshot.put("reloadCount", getReloadCount());
+        snapshot.put("refreshFailureCount", getRefreshFailureCount());
+        snapshot.put("hitsByContext", getHitsByContext());
+        snapshot.put("missesByContext", getMissesByContext());
+        snapshot.put("patternHits", logProcessor.getHitCounts());
+        Gson gson = new GsonBuilder().setPrettyPrinting().create();
+        Path tmpFile = file.resolveSibling(file.getFileName() + ".tmp");
+        try (Writer writer = Files.newBufferedWriter(tmpFile, StandardCharsets.UTF_8)) {
+            gson.toJson(snapshot, writer);
+        }
+        Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,139 @@
+package com.github.logtrail.tools;
+
+import org.apache.commons.lang3.math.NumberUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Result of {@link LogProcessor#process(String, String, MatchResult)}, meant to be reused across calls so
+ * matching a message does not allocate. Only the id of the matched pattern and the offsets of the fields
+ * in the message are kept, field values are cut from the message when asked for. Not thread safe, each
+ * thread should use its own result.
+ */
+public class MatchResult {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MatchResult.class);
+    private String message;
+    private LogProcessor.LogPattern pattern;
+    private int groupCount;
+    private int[] offsets = new int[16];
+    //patterns matched against the message, counted for the metrics
+    int attempts;
+    //scratch space of the candidate selection
+    final ContextPatterns.Candidates candidates = new ContextPatterns.Candidates();
+
+    public boolean isMatched() {
+        return pattern != null;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    /**
+     * @return id of the matched pattern, null if the message did not match
+     */
+    public String getPatternId() {
+        return pattern != null ? pattern.getId() : null;
+    }
+
+    /**
+     * @return number of fields, the groups of the pattern that have a field name
+     */
+    public int getFieldCount() {
+        if (pattern == null || pattern.getFields() == null) {
+            return 0;
+        }
+        return Math.min(groupCount, pattern.getFields().size());
+    }
+
+    public String getFieldName(int field) {
+        return pattern.getFields().get(checkField(field));
+    }
+
+    /**
+     * @return start of the field in the message, -1 if its group did not take part in the match
+     */
+    public int getFieldStart(int field) {
+        return offsets[2 * checkField(field)];
+    }
+
+    public int getFieldEnd(int field) {
+        return offsets[2 * checkField(field) + 1];
+    }
+
+    public String getFieldValue(int field) {
+        int start = getFieldStart(field);
+        return start == -1 ? null : message.substring(start, getFieldEnd(field));
+    }
+
+    /**
+     * @return the value as a Number if it is a number, as a String otherwise
+     */
+    public Object getTypedFieldValue(int field) {
+        String value = getFieldValue(field);
+        return NumberUtils.isNumber(value) ? NumberUtils.createNumber(value) : value;
+    }
+
+    /**
+     * @return the result in the form returned by {@link LogProcessor#process(String, String)}, null if the
+     * message did not match
+     */
+    public Map<String, Object> toMap() {
+        if (pattern == null) {
+            return null;
+        }
+        Map<String, Object> parsedInfo = new LinkedHashMap<>();
+        parsedInfo.put("patternId", pattern.getId());
+        List<Integer> matchIndices = new ArrayList<>();
+        int fieldCount = getFieldCount();
+        for (int i = 0; i < groupCount; i++) {
+            if (i < fieldCount) {
+                parsedInfo.put(getFieldName(i), getTypedFieldValue(i));
+                matchIndices.add(getFieldStart(i));
+                matchIndices.add(getFieldEnd(i));
+            } else {
+                LOGGER.warn("Cannot find fields for message {} ", message);
+            }
+        }
+        if (groupCount > 0) {
+            parsedInfo.put("matchIndices", matchIndices);
+        }
+        return parsedInfo;
+    }
+
+    void reset(String message) {
+        this.message = message;
+        this.pattern = null;
+        this.groupCount = 0;
+    }
+
+    //Offsets array with room for the groups, filled by the matchers before matched is called
+    int[] offsets(int groupCount) {
+        if (offsets.length < 2 * groupCount) {
+            offsets = new int[2 * groupCount];
+        }
+        return offsets;
+    }
+
+    void matched(LogProcessor.LogPattern pattern, int groupCount) {
+        this.pattern = pattern;
+        this.groupCount = groupCount;
+    }
+
+    private int checkField(int field) {
+        if (field < 0 || field >= getFieldCount()) {
+            throw new IndexOutOfBoundsException("Field " + field + " of " + getFieldCount());
+        }
+        return field;
+    }
+
+    @Override
+    public String toString() {
+        return isMatched() ? String.valueOf(toMap()) : "MatchResult{no match}";
+    }
+}
@@ -0,0 +1,129 @@
+package com.github.logtrail.tools;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Literal segments of a message regex created by the source analyzer: literal text, with regex special
+ * chars escaped, separated by (?&lt;argN&gt;[\S]+) groups and optionally anchored with ^ and $.
+ * A regex with n groups has n + 1 segments, which can be empty. Other regexes are not parsed.
+ */
+class MessageTemplate {
+    private static final String META_CHARS = "\\^$.|?*+()[]{}";
+    private static final String GROUP_START = "(?<";
+    private static final String GROUP_END = ">[\\S]+)";
+    private final String[] segments;
+    private final int literalLength;
+
+    private MessageTemplate(String[] segments) {
+        this.segments = segments;
+        int length = 0;
+        for (String segment : segments) {
+            length += segment.length();
+        }
+        this.literalLength = length;
+    }
+
+    /**
+     * @return the template of the regex, or null if the regex is not in the form created by the analyzer
+     */
+    static MessageTemplate parse(String regex) {
+        if (regex == null) {
+            return null;
+        }
+        int start = regex.startsWith("^") ? 1 : 0;
+        int end = regex.length();
+        if (end > start && regex.charAt(end - 1) == '$' && !isEscaped(regex, end - 1)) {
+            end--;
+        }
+        List<String> segments = new ArrayList<>();
+        StringBuilder segment = new StringBuilder();
+        int i = start;
+        while (i < end) {
+            char c = regex.charAt(i);
+            if (c == '\\') {
+                //a backslash before a letter or digit is a construct (\S, \d, \1), before any other char a literal
+                if (i + 1 >= end || Character.isLetterOrDigit(regex.charAt(i + 1))) {
+                    return null;
+                }
+                segment.append(regex.charAt(i + 1));
+                i += 2;
+            } else if (c == '(') {
+                int groupEnd = groupEnd(regex, i, end);
+                if (groupEnd == -1) {
+                    return null;
+                }
+                segments.add(segment.toString());
+                segment.setLength(0);
+                i = groupEnd;
+            } else if (META_CHARS.indexOf(c) != -1) {
+                return null;
+            } else {
+                segment.append(c);
+                i++;
+            }
+        }
+        segments.add(segment.toString());
+        return new MessageTemplate(segments.toArray(new String[0]));
+    }
+
+    //End of a (?<name>[\S]+) group starting at start, -1 if there is no such group
+    private static int groupEnd(String regex, int start, int end) {
+        if (!regex.startsWith(GROUP_START, start)) {
+            return -1;
+        }
+        int i = start + GROUP_START.length();
+        int nameStart = i;
+        while (i < end && isAsciiLetterOrDigit(regex.charAt(i))) {
+            i++;
+        }
+        if (i == nameStart || Character.isDigit(regex.charAt(nameStart))
+                || !regex.startsWith(GROUP_END, i) || i + GROUP_END.length() > end) {
+            return -1;
+        }
+        return i + GROUP_END.length();
+    }
+
+    private static boolean isAsciiLetterOrDigit(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9');
+    }
+
+    private static boolean isEscaped(String regex, int index) {
+        int backslashes = 0;
+        for (int i = index - 1; i >= 0 && regex.charAt(i) == '\\'; i--) {
+            backslashes++;
+        }
+        return backslashes % 2 == 1;
+    }
+
+    String[] getSegments() {
+        return segments;
+    }
+
+    int getGroupCount() {
+        return segments.length - 1;
+    }
+
+    /**
+     * @return the longest literal segment, which occurs in every message matching the template
+     */
+    String getLongestSegment() {
+        String longest = segments[0];
+        for (String segment : segments) {
+            if (segment.length() > longest.length()) {
+                longest = segment;
+            }
+        }
+        return longest;
+    }
+
+    /**
+     * Cheap check before matching: a message can only match if it starts with the first segment,
+     * ends with the last one and is long enough for all segments and one char per group.
+     */
+    boolean couldMatch(String message) {
+        return message.length() >= literalLength + getGroupCount()
+                && message.startsWith(segments[0])
+                && message.endsWith(segments[segments.length - 1]);
+    }
+}
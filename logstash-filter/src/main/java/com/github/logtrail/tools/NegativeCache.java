@@ -0,0 +1,97 @@
+package com.github.logtrail.tools;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded cache of the messages that matched no pattern of their context nor of the default context, so
+ * a message logged again and again without a pattern is not matched against every candidate each time.
+ * Slots are picked by the hash of the context and the message, a message missing again replaces the
+ * message in its slot, so lookups and inserts neither lock nor allocate beyond the entry.
+ * <p>
+ * Messages are cached as they are. Masking the variable parts of messages would cache more of them, but
+ * patterns with literal numbers or words would then be missed for messages of the same shape.
+ * Each entry keeps the patterns it missed, and is only a miss for the same patterns, so a message
+ * missing against patterns being replaced by a reload is not a miss for the new patterns.
+ */
+class NegativeCache {
+    //longer messages are not cached, so the cache stays small
+    static final int MAX_MESSAGE_LENGTH = 2048;
+    private final AtomicReferenceArray<Entry> entries;
+    private final int mask;
+    private final LongAdder hits = new LongAdder();
+
+    /**
+     * @param size number of messages cached, rounded up to a power of two
+     */
+    NegativeCache(int size) {
+        int capacity = Integer.highestOneBit(Math.max(1, size - 1)) << 1;
+        this.entries = new AtomicReferenceArray<>(capacity);
+        this.mask = capacity - 1;
+    }
+
+    /**
+     * @return true if the message missed the same patterns before
+     */
+    boolean isMiss(String context, String message, ContextPatterns patterns, ContextPatterns defaultPatterns) {
+        int hash = hash(context, message);
+        Entry entry = entries.get(hash & mask);
+        if (entry != null && entry.hash == hash && entry.patterns == patterns && entry.defaultPatterns == defaultPatterns
+                && entry.context.equals(context) && entry.message.equals(message)) {
+            hits.increment();
+            return true;
+        }
+        return false;
+    }
+
+    void addMiss(String context, String message, ContextPatterns patterns, ContextPatterns defaultPatterns) {
+        if (message.length() <= MAX_MESSAGE_LENGTH) {
+            int hash = hash(context, message);
+            entries.set(hash & mask, new Entry(hash, context, message, patterns, defaultPatterns));
+        }
+    }
+
+    /**
+     * Drops all the messages, so the patterns they missed can be collected.
+     */
+    void clear() {
+        for (int i = 0; i < entries.length(); i++) {
+            entries.set(i, null);
+        }
+    }
+
+    long getHits() {
+        return hits.sum();
+    }
+
+    int size() {
+        int size = 0;
+        for (int i = 0; i < entries.length(); i++) {
+            if (entries.get(i) != null) {
+                size++;
+            }
+        }
+        return size;
+    }
+
+    private static int hash(String context, String message) {
+        int hash = 31 * context.hashCode() + message.hashCode();
+        return hash ^ (hash >>> 16);
+    }
+
+    private static class Entry {
+        private final int hash;
+        private final String context;
+        private final String message;
+        private final ContextPatterns patterns;
+        private final ContextPatterns defaultPatterns;
+
+        Entry(int hash, String context, String message, ContextPatterns patterns, ContextPatterns defaultPatterns) {
+            this.hash = hash;
+            this.context = context;
+            this.message = message;
+            this.patterns = patterns;
+            this.defaultPatterns = defaultPatterns;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.github.logtrail.tools;
+
+/**
+ * Matches messages against the template of an analyzer regex without java.util.regex, by comparing
+ * the literal segments in place. Gives the same result as Matcher.matches() on the regex, including
+ * the group offsets: like the greedy [\S]+ groups of the regex, each group first takes the longest
+ * run of non whitespace chars and gives back chars until the rest of the template matches. As regexes
+ * match code points, neither groups nor segments end in the middle of a surrogate pair. Stateless,
+ * safe to use from multiple threads.
+ */
+class SegmentMatcher {
+    private final String[] segments;
+
+    SegmentMatcher(MessageTemplate template) {
+        this.segments = template.getSegments();
+    }
+
+    int getGroupCount() {
+        return segments.length - 1;
+    }
+
+    /**
+     * @param offsets filled with the start and end of each group, at least 2 * group count entries
+     * @return true if the whole message matches
+     */
+    boolean match(String message, int[] offsets) {
+        String first = segments[0];
+        if (!message.startsWith(first) || splitsSurrogatePair(message, first.length())) {
+            return false;
+        }
+        if (segments.length == 1) {
+            return message.length() == first.length();
+        }
+        return matchGroup(message, 1, first.length(), offsets);
+    }
+
+    //Matches group (1 based) starting at start and the rest of the template after it
+    private boolean matchGroup(String message, int group, int start, int[] offsets) {
+        int runEnd = start;
+        while (runEnd < message.length() && !isWhitespace(message.charAt(runEnd))) {
+            runEnd++;
+        }
+        if (runEnd == start) {
+            return false;
+        }
+        String next = segments[group];
+        if (group == segments.length - 1) {
+            //the last segment has to end the message
+            int end = message.length() - next.length();
+            if (end <= start || end > runEnd || !message.startsWith(next, end) || splitsSurrogatePair(message, end)) {
+                return false;
+            }
+            offsets[2 * group - 2] = start;
+            offsets[2 * group - 1] = end;
+            return true;
+        }
+        for (int end = message.lastIndexOf(next, runEnd); end > start; end = message.lastIndexOf(next, end - 1)) {
+            if (!splitsSurrogatePair(message, end) && !splitsSurrogatePair(message, end + next.length())
+                    && matchGroup(message, group + 1, end + next.length(), offsets)) {
+                offsets[2 * group - 2] = start;
+                offsets[2 * group - 1] = end;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    //Whitespace as in the \s regex class
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+
+    private static boolean splitsSurrogatePair(String message, int index) {
+        return index > 0 && index < message.length()
+                && Character.isHighSurrogate(message.charAt(index - 1)) && Character.isLowSurrogate(message.charAt(index));
+    }
+}
@@ -0,0 +1,158 @@
+package com.github.logtrail.tools;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the candidates ContextPatterns selects for a message include every pattern a scan of all the
+ * patterns with java.util.regex would match, in the order of the scan, before and after reorders.
+ */
+public class ContextPatternsTest {
+    //short pieces, so templates share overlapping anchors and many have no segment of MIN_ANCHOR_LENGTH chars
+    private static final String[] PIECES = {"a", "b", "c", "ab", "bc", "abc", "bca", "cab", "abcab", "x", "1",
+            " ", ".", "ab ", "Error", "rror"};
+
+    @Test
+    public void findsEveryKeyword() {
+        List<String> keywords = Arrays.asList("abc", "bc", "c", "abcab", "bca", "cab", "ab ab", "xyz", "aaa", "aa");
+        AhoCorasick automaton = new AhoCorasick(keywords);
+        Random random = new Random(3);
+        for (int m = 0; m < 5000; m++) {
+            String text = randomText(random, 8, false);
+            int[] counts = new int[keywords.size()];
+            automaton.search(text, keyword -> counts[keyword]++);
+            for (int k = 0; k < keywords.size(); k++) {
+                assertEquals(keywords.get(k) + " | " + text, occurrences(text, keywords.get(k)), counts[k]);
+            }
+        }
+    }
+
+    @Test
+    public void selectsEveryMatchingPattern() {
+        Random random = new Random(11);
+        for (int round = 0; round < 50; round++) {
+            List<LogProcessor.LogPattern> patterns = new ArrayList<>();
+            List<String> templates = new ArrayList<>();
+            int patternCount = 1 + random.nextInt(60);
+            for (int p = 0; p < patternCount; p++) {
+                int groups = random.nextInt(4);
+                StringBuilder regex = new StringBuilder("^"), message = new StringBuilder();
+                for (int i = 0; i <= groups; i++) {
+                    if (i > 0) {
+                        regex.append("(?<arg").append(i).append(">[\\S]+)");
+                        message.append(randomText(random, 2, true));
+                    }
+                    String segment = randomText(random, 3, false);
+                    regex.append(segment.replace(".", "\\."));
+                    message.append(segment);
+                }
+                patterns.add(pattern("p" + p, regex.append("$").toString()));
+                templates.add(message.toString());
+            }
+            //regexes not created by the analyzer are candidates for every message
+            patterns.add(pattern("r1", "^ab.*c$"));
+            patterns.add(pattern("r2", "[abc]+ \\d"));
+            ContextPatterns contextPatterns = new ContextPatterns(patterns);
+
+            List<String> messages = new ArrayList<>(templates);
+            for (int m = 0; m < 200; m++) {
+                messages.add(randomText(random, 6, false));
+                //messages of a template with the text of another one around or in its groups
+                String template = templates.get(random.nextInt(templates.size()));
+                String other = templates.get(random.nextInt(templates.size()));
+                messages.add(random.nextBoolean() ? template + other : other + template);
+                messages.add(template.replaceFirst("x", other.replace(" ", "")));
+            }
+            for (int reorder = 0; reorder < 3; reorder++) {
+                for (String message : messages) {
+                    assertSelected(contextPatterns, message);
+                }
+                for (int i = 0; i < patterns.size(); i++) {
+                    for (int h = random.nextInt(5); h > 0; h--) {
+                        contextPatterns.recordHit(i);
+                    }
+                }
+                contextPatterns.reorder();
+            }
+        }
+    }
+
+    //the candidates, in order, and the exact match are the patterns matched by a scan in the same order
+    private static void assertSelected(ContextPatterns contextPatterns, String message) {
+        List<Integer> scanned = new ArrayList<>();
+        for (int index : contextPatterns.getOrder()) {
+            if (contextPatterns.get(index).getPattern().matcher(message).matches()) {
+                scanned.add(index);
+            }
+        }
+        List<Integer> selected = new ArrayList<>();
+        ContextPatterns.Candidates candidates = new ContextPatterns.Candidates();
+        contextPatterns.select(message, candidates);
+        Set<Integer> seen = new HashSet<>();
+        for (int i = 0; i < candidates.size(); i++) {
+            int index = candidates.get(i);
+            assertTrue("candidate selected twice " + index, seen.add(index));
+            if (contextPatterns.get(index).getPattern().matcher(message).matches()) {
+                selected.add(index);
+            }
+        }
+        int exact = contextPatterns.exactMatch(message);
+        if (exact != -1) {
+            assertTrue(message, contextPatterns.get(exact).getPattern().matcher(message).matches());
+            selected.add(exact);
+        }
+        //templates without groups are looked up by text, the first one of a text standing for the others
+        List<Integer> scannedWithGroups = new ArrayList<>();
+        boolean scannedExact = false;
+        for (int index : scanned) {
+            if (isExact(contextPatterns.get(index))) {
+                scannedExact = true;
+            } else {
+                scannedWithGroups.add(index);
+            }
+        }
+        assertEquals(message, scannedExact, exact != -1);
+        selected.remove(Integer.valueOf(exact));
+        assertEquals(message, scannedWithGroups, selected);
+    }
+
+    private static boolean isExact(LogProcessor.LogPattern pattern) {
+        MessageTemplate template = pattern.getTemplate();
+        return template != null && template.getGroupCount() == 0;
+    }
+
+    private static LogProcessor.LogPattern pattern(String id, String regex) {
+        LogProcessor.LogPattern pattern = new LogProcessor.LogPattern();
+        pattern.setId(id);
+        pattern.setContext("test");
+        pattern.setMessageRegEx(regex);
+        pattern.prepare();
+        return pattern;
+    }
+
+    private static String randomText(Random random, int maxPieces, boolean nonBlank) {
+        StringBuilder text = new StringBuilder();
+        for (int i = random.nextInt(maxPieces + 1); i > 0 || (nonBlank && text.length() == 0); i--) {
+            text.append(PIECES[random.nextInt(PIECES.length)]);
+        }
+        String value = text.toString();
+        return nonBlank ? (value.trim().isEmpty() ? "x" : value.replace(" ", "")) : value;
+    }
+
+    private static int occurrences(String text, String keyword) {
+        int count = 0;
+        for (int i = text.indexOf(keyword); i != -1; i = text.indexOf(keyword, i + 1)) {
+            count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,122 @@
+package com.github.logtrail.tools;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that NegativeCache only reports misses of the same message against the same patterns, and that
+ * LogProcessor matches a cached miss once patterns matching it are loaded.
+ */
+public class NegativeCacheTest {
+
+    @Test
+    public void cachedMissMatchesOncePatternsArePublished() {
+        Properties properties = new Properties();
+        properties.setProperty("patterns.reorder.interval.millis", "0");
+        properties.setProperty("patterns.refresh.interval.millis", "0");
+        properties.setProperty("metrics.enabled", "false");
+        LogProcessor logProcessor = new LogProcessor("unused.bundle", null, properties);
+        logProcessor.init(Collections.singletonList(pattern("1", "com.a.A", "^started (?<arg1>[\\S]+)$")));
+
+        String message = "stopped in 5 ms";
+        assertNull(logProcessor.process(message, "com.a.A"));
+        assertEquals(1, logProcessor.getNegativeCacheSize());
+        assertNull(logProcessor.process(message, "com.a.A"));
+        assertEquals(1, logProcessor.getNegativeCacheHits());
+
+        logProcessor.init(Arrays.asList(pattern("1", "com.a.A", "^started (?<arg1>[\\S]+)$"),
+                pattern("2", "com.a.A", "^stopped in (?<arg1>[\\S]+) ms$")));
+        assertEquals(0, logProcessor.getNegativeCacheSize());
+        Map<String, Object> result = logProcessor.process(message, "com.a.A");
+        assertNotNull(result);
+        assertEquals("2", result.get("patternId"));
+        assertEquals(1, logProcessor.getNegativeCacheHits());
+        logProcessor.cleanup();
+    }
+
+    @Test
+    public void missIsOnlyAMissOfTheSamePatterns() {
+        NegativeCache cache = new NegativeCache(16);
+        ContextPatterns patterns = contextPatterns("^started (?<arg1>[\\S]+)$");
+        ContextPatterns defaultPatterns = contextPatterns("^done$");
+        cache.addMiss("com.a.A", "stopped", patterns, defaultPatterns);
+        assertTrue(cache.isMiss("com.a.A", "stopped", patterns, defaultPatterns));
+        assertFalse(cache.isMiss("com.a.B", "stopped", patterns, defaultPatterns));
+        //patterns swapped in by a reload that did not clear the cache yet
+        assertFalse(cache.isMiss("com.a.A", "stopped", contextPatterns("^stopped$"), defaultPatterns));
+        assertFalse(cache.isMiss("com.a.A", "stopped", patterns, contextPatterns("^stopped$")));
+        cache.clear();
+        assertFalse(cache.isMiss("com.a.A", "stopped", patterns, defaultPatterns));
+        assertEquals(1, cache.getHits());
+    }
+
+    @Test
+    public void collidingMessageReplacesTheSlot() {
+        NegativeCache cache = new NegativeCache(2);
+        ContextPatterns patterns = contextPatterns("^started (?<arg1>[\\S]+)$");
+        //"Aa" and "BB" have the same hash code, so they share a slot and a hash
+        assertEquals("Aa".hashCode(), "BB".hashCode());
+        cache.addMiss("ctx", "Aa", patterns, null);
+        assertTrue(cache.isMiss("ctx", "Aa", patterns, null));
+        assertFalse(cache.isMiss("ctx", "BB", patterns, null));
+        cache.addMiss("ctx", "BB", patterns, null);
+        assertTrue(cache.isMiss("ctx", "BB", patterns, null));
+        assertFalse(cache.isMiss("ctx", "Aa", patterns, null));
+        assertEquals(1, cache.size());
+
+        //of three messages of other hashes two share one of the two slots, and replace each other
+        String[] messages = {"message 1", "message 2", "message 3"};
+        boolean replaced = false;
+        for (int i = 0; i < messages.length; i++) {
+            for (int j = 0; j < messages.length; j++) {
+                if (i == j) {
+                    continue;
+                }
+                cache.clear();
+                cache.addMiss("ctx", messages[i], patterns, null);
+                cache.addMiss("ctx", messages[j], patterns, null);
+                assertTrue(cache.isMiss("ctx", messages[j], patterns, null));
+                if (!cache.isMiss("ctx", messages[i], patterns, null)) {
+                    replaced = true;
+                    assertEquals(1, cache.size());
+                }
+            }
+        }
+        assertTrue(replaced);
+    }
+
+    @Test
+    public void longMessagesAreNotCached() {
+        NegativeCache cache = new NegativeCache(16);
+        ContextPatterns patterns = contextPatterns("^started (?<arg1>[\\S]+)$");
+        char[] chars = new char[NegativeCache.MAX_MESSAGE_LENGTH + 1];
+        Arrays.fill(chars, 'a');
+        String message = new String(chars);
+        cache.addMiss("ctx", message, patterns, null);
+        assertFalse(cache.isMiss("ctx", message, patterns, null));
+        assertEquals(0, cache.size());
+    }
+
+    private static ContextPatterns contextPatterns(String regex) {
+        return new ContextPatterns(Collections.singletonList(pattern("1", "ctx", regex)));
+    }
+
+    private static LogProcessor.LogPattern pattern(String id, String context, String regex) {
+        LogProcessor.LogPattern pattern = new LogProcessor.LogPattern();
+        pattern.setId(id);
+        pattern.setContext(context);
+        pattern.setMessageRegEx(regex);
+        pattern.prepare();
+        return pattern;
+    }
+}
@@ -0,0 +1,178 @@
+package com.github.logtrail.tools;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Checks that SegmentMatcher matches the same messages as java.util.regex does with the regexes of the
+ * analyzer, with the same group offsets, and that MessageTemplate only parses regexes of that form.
+ */
+public class SegmentMatcherTest {
+    //chars LogTemplate of the analyzer escapes in literal text, braces are left as they are
+    private static final String ESCAPED = "<([\\^-=$!|])\u200C\u200B?*+.>";
+    private static final String[] PIECES = {"a", "b", "ab", " ", "\t", "\n", "\u000B", "\f", "\r", "\u00A0",
+            "\u2003", ".", "*", "(", ")", "[", "]", "\\", "$", "^", "|", "?", "+", "-", "=", "!", "<", ">",
+            "\uD83D\uDE00", "\uD83D", "\uDE00", "\u00E9", "x y", "\u200C", "\u200B", "{", "}", "0x", "12"};
+
+    @Test
+    public void matchesWhitespaceLikeRegex() {
+        String regex = "^took (?<arg1>[\\S]+) ms$";
+        for (String message : new String[]{"took 5 ms", "took\t5 ms", "took 5\tms", "took  ms", "took 5 6 ms",
+                "took 5\u00A0ms", "took 5\u00A0 ms", "took 5\u2003x ms", "took \u000B5 ms", "took 5\r\n ms",
+                "took 5\f ms", "took 5 ms ", " took 5 ms", "took 5 ms\n"}) {
+            assertConforms(regex, message);
+        }
+        assertConforms("^(?<arg1>[\\S]+)\t(?<arg2>[\\S]+)$", "a\tb");
+        assertConforms("^(?<arg1>[\\S]+)\t(?<arg2>[\\S]+)$", "a b\tc");
+    }
+
+    @Test
+    public void matchesEscapedMetaChars() {
+        String regex = "^\\[(?<arg1>[\\S]+)\\] \\(\\*\\) \\{(?<arg2>[\\S]+)\\} a\\.b\\|c\\?\\+ \\\\ \\^\\$$";
+        assertConforms(regex, "[x] (*) {y} a.b|c?+ \\ ^$");
+        assertConforms(regex, "[x]] (*) {{y}} a.b|c?+ \\ ^$");
+        assertConforms(regex, "[x] (*) {y} aXb|c?+ \\ ^$");
+        assertConforms(regex, "[] (*) {y} a.b|c?+ \\ ^$");
+        assertConforms("^\\<\\\u200C\\\u200B(?<arg1>[\\S]+)$", "<\u200C\u200Bx");
+        assertConforms("^price \\$(?<arg1>[\\S]+)\\$", "price $12$");
+        assertConforms("^price \\$(?<arg1>[\\S]+)\\$", "price $1$2$");
+        assertConforms("^\\<(?<arg1>[\\S]+)\\> \\- \\= \\!$", "<a> - = !");
+    }
+
+    @Test
+    public void keepsSurrogatePairsTogether() {
+        String smiley = "\uD83D\uDE00";
+        assertConforms("^(?<arg1>[\\S]+)\uDE00$", "a" + smiley);
+        assertConforms("^(?<arg1>[\\S]+)\uDE00$", "a" + smiley + "\uDE00");
+        assertConforms("^\uD83D(?<arg1>[\\S]+)$", smiley + "a");
+        assertConforms("^\uD83D(?<arg1>[\\S]+)$", "\uD83Da");
+        assertConforms("^(?<arg1>[\\S]+)" + smiley + "(?<arg2>[\\S]+)$", "a" + smiley + "b" + smiley + "c");
+        assertConforms("^(?<arg1>[\\S]+)\uD83D$", "a\uD83D");
+        assertConforms("^(?<arg1>[\\S]+)\uD83D$", "a" + smiley + "\uD83D");
+        assertConforms("^(?<arg1>[\\S]+)$", smiley);
+        assertConforms("^" + smiley + "$", smiley);
+    }
+
+    @Test
+    public void matchesEmptyAndAdjacentSegments() {
+        assertConforms("", "");
+        assertConforms("", "a");
+        assertConforms("^$", "");
+        assertConforms("^(?<arg1>[\\S]+)$", "abc");
+        assertConforms("^(?<arg1>[\\S]+)$", "a c");
+        assertConforms("^(?<arg1>[\\S]+)$", "");
+        assertConforms("^(?<arg1>[\\S]+)(?<arg2>[\\S]+)$", "ab");
+        assertConforms("^(?<arg1>[\\S]+)(?<arg2>[\\S]+)$", "abcd");
+        assertConforms("^(?<arg1>[\\S]+)(?<arg2>[\\S]+)$", "a");
+        assertConforms("^(?<arg1>[\\S]+)(?<arg2>[\\S]+)(?<arg3>[\\S]+)$", "abc");
+        assertConforms("^(?<arg1>[\\S]+) (?<arg2>[\\S]+)$", "a b c");
+        assertConforms("^a(?<arg1>[\\S]+)a(?<arg2>[\\S]+)a$", "aaaaaaa");
+        assertConforms("^a(?<arg1>[\\S]+)a(?<arg2>[\\S]+)a$", "aaaa");
+        assertConforms("(?<arg1>[\\S]+)=(?<arg2>[\\S]+)", "a=b=c");
+    }
+
+    @Test
+    public void rejectsOtherRegexes() {
+        for (String regex : new String[]{"\\d+ items", "took (\\d+) ms", "a|b", "a.*b", "[abc]", "x{2}", "a+",
+                "a?", "a^b", "a$b", "^^a", "(?:x)", "\\1", "\\Qquoted\\E", "trailing\\", "(?<arg1>[\\s]+)",
+                "(?<arg1>\\S+)", "(?<arg1>[\\S]*)", "(?<1arg>[\\S]+)", "(?<arg_1>[\\S]+)", "(?<>[\\S]+)",
+                "(?<arg1>[\\S]+", "(?<arg1>[\\S]+)$)", "(a)", "\\S", "\\p{L}"}) {
+            assertNull(regex, MessageTemplate.parse(regex));
+        }
+        assertNull(MessageTemplate.parse(null));
+    }
+
+    @Test
+    public void matchesRandomTemplatesLikeRegex() {
+        Random random = new Random(7);
+        for (int t = 0; t < 20000; t++) {
+            int groups = random.nextInt(5);
+            List<String> segments = new ArrayList<>();
+            for (int i = 0; i <= groups; i++) {
+                segments.add(randomText(random, 3));
+            }
+            boolean anchored = random.nextBoolean();
+            StringBuilder regex = new StringBuilder(anchored ? "^" : "");
+            for (int i = 0; i < segments.size(); i++) {
+                if (i > 0) {
+                    regex.append("(?<arg").append(i).append(">[\\S]+)");
+                }
+                regex.append(escape(segments.get(i)));
+            }
+            regex.append(anchored ? "$" : "");
+            if (regex.indexOf("{") != -1 || regex.indexOf("}") != -1) {
+                //unescaped braces are quantifiers, not text, so these regexes are left to java.util.regex
+                assertNull(regex.toString(), MessageTemplate.parse(regex.toString()));
+                continue;
+            }
+            for (int k = 0; k < 20; k++) {
+                StringBuilder message = new StringBuilder();
+                for (int i = 0; i < segments.size(); i++) {
+                    if (i > 0) {
+                        message.append(randomText(random, 3));
+                    }
+                    message.append(random.nextInt(8) != 0 ? segments.get(i) : randomText(random, 2));
+                }
+                assertConforms(regex.toString(), message.toString());
+            }
+        }
+    }
+
+    private static void assertConforms(String regex, String message) {
+        MessageTemplate template = MessageTemplate.parse(regex);
+        assertNotNull(regex, template);
+        Matcher matcher = Pattern.compile(regex).matcher(message);
+        int groupCount = matcher.groupCount();
+        assertEquals(regex, groupCount, template.getGroupCount());
+        int[] offsets = new int[2 * groupCount];
+        boolean matched = new SegmentMatcher(template).match(message, offsets);
+        String description = printable(regex) + " | " + printable(message);
+        assertEquals(description, matcher.matches(), matched);
+        if (matched) {
+            int[] expected = new int[2 * groupCount];
+            for (int group = 1; group <= groupCount; group++) {
+                expected[2 * group - 2] = matcher.start(group);
+                expected[2 * group - 1] = matcher.end(group);
+            }
+            assertArrayEquals(description, expected, offsets);
+        }
+    }
+
+    private static String randomText(Random random, int maxPieces) {
+        StringBuilder text = new StringBuilder();
+        int pieces = random.nextInt(maxPieces + 1);
+        for (int i = 0; i < pieces; i++) {
+            text.append(PIECES[random.nextInt(PIECES.length)]);
+        }
+        return text.toString();
+    }
+
+    private static String escape(String text) {
+        StringBuilder escaped = new StringBuilder();
+        for (char c : text.toCharArray()) {
+            if (ESCAPED.indexOf(c) != -1) {
+                escaped.append('\\');
+            }
+            escaped.append(c);
+        }
+        return escaped.toString();
+    }
+
+    private static String printable(String text) {
+        StringBuilder printable = new StringBuilder();
+        for (char c : text.toCharArray()) {
+            printable.append(c < 32 || c > 126 ? String.format("\\u%04x", (int) c) : String.valueOf(c));
+        }
+        return printable.toString();
+    }
+}
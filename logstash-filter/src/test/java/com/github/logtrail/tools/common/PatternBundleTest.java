@@ -0,0 +1,145 @@
+package com.github.logtrail.tools.common;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that a bundle written by PatternBundleWriter reads back the same records with PatternBundleReader,
+ * and that files that are not bundles, of a newer version or corrupted are rejected.
+ */
+public class PatternBundleTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void readsWhatWasWritten() throws IOException {
+        List<PatternRecord> written = new ArrayList<>();
+        written.add(record("id-null", "com.a.A", null, null, null));
+        written.add(record("id-empty", "com.a.A", Collections.emptyList(), Collections.emptyList(),
+                Collections.emptyList()));
+        written.add(record("id-utf8", "com.a.\u00C9t\u00E9",
+                Arrays.asList("pr\u00EAt \u00E0 ", " \u6587\u5B57 \uD83D\uDE00"),
+                Collections.singletonList("\u00E9l\u00E8ve"), Collections.singletonList("\uD83D\uDE00")));
+        //more than 127 strings and list entries, so references and counts take more than one varint byte
+        for (int i = 0; i < 300; i++) {
+            written.add(record("id-" + i, "com.a.B", Arrays.asList("took ", " ms"),
+                    Collections.singletonList("took"), Collections.singletonList("n" + i)));
+        }
+        List<String> manyFields = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            manyFields.add("field" + i);
+        }
+        written.add(record("id-many", "com.a.C", null, manyFields, manyFields));
+
+        List<PatternRecord> read = PatternBundleReader.read(write(written));
+        assertEquals(written.size(), read.size());
+        for (int i = 0; i < written.size(); i++) {
+            assertRecordEquals(written.get(i), read.get(i));
+        }
+        assertNull(read.get(0).getSegments());
+        assertNull(read.get(0).getIndexPattern());
+        assertTrue(read.get(1).getSegments().isEmpty());
+        //strings are decoded once and shared by the records
+        assertSame(read.get(3).getContext(), read.get(4).getContext());
+        assertSame(read.get(3).getSegments().get(0), read.get(302).getSegments().get(0));
+        assertSame(read.get(0).getContext(), read.get(1).getContext());
+    }
+
+    @Test
+    public void readsEmptyBundle() throws IOException {
+        assertTrue(PatternBundleReader.read(write(Collections.emptyList())).isEmpty());
+    }
+
+    @Test
+    public void rejectsOtherFiles() throws IOException {
+        Path file = write(Collections.singletonList(record("id", "com.a.A", null, null, null)));
+        byte[] bytes = Files.readAllBytes(file);
+        bytes[0] = '{';
+        assertRejected(bytes, "Not a pattern bundle");
+        assertRejected("{\"patterns\":[]}".getBytes(), "Not a pattern bundle");
+        assertRejected(new byte[0], "Not a pattern bundle");
+    }
+
+    @Test
+    public void rejectsNewerVersion() throws IOException {
+        Path file = write(Collections.singletonList(record("id", "com.a.A", null, null, null)));
+        byte[] bytes = Files.readAllBytes(file);
+        ByteBuffer.wrap(bytes).putInt(4, PatternBundleWriter.VERSION + 1);
+        assertRejected(bytes, "Unsupported pattern bundle version " + (PatternBundleWriter.VERSION + 1));
+    }
+
+    @Test
+    public void rejectsCorruptedBundle() throws IOException {
+        Path file = write(Arrays.asList(record("id-1", "com.a.A", Arrays.asList("a ", ""), null, null),
+                record("id-2", "com.a.A", null, Collections.singletonList("b"), null)));
+        byte[] bytes = Files.readAllBytes(file);
+        //any flipped byte after the version, including the checksum itself, fails the CRC check
+        for (int i = 8; i < bytes.length; i++) {
+            byte[] flipped = bytes.clone();
+            flipped[i] ^= 0x10;
+            assertRejected(flipped, "Corrupted pattern bundle");
+        }
+        assertRejected(Arrays.copyOf(bytes, bytes.length - 1), "Corrupted pattern bundle");
+    }
+
+    private Path write(List<PatternRecord> records) throws IOException {
+        Path file = folder.newFile().toPath();
+        try (PatternBundleWriter writer = new PatternBundleWriter(file)) {
+            records.forEach(writer::add);
+        }
+        return file;
+    }
+
+    private void assertRejected(byte[] bytes, String message) throws IOException {
+        Path file = folder.newFile().toPath();
+        Files.write(file, bytes);
+        try {
+            PatternBundleReader.read(file);
+            fail("Read a bundle that should be rejected: " + message);
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith(message));
+        }
+    }
+
+    private static PatternRecord record(String id, String context, List<String> segments, List<String> fields,
+                                        List<String> args) {
+        PatternRecord record = new PatternRecord();
+        record.setId(id);
+        record.setContext(context);
+        record.setLevel("info");
+        record.setMethod("run");
+        record.setMessageRegEx("^" + id + "$");
+        record.setSegments(segments);
+        record.setFields(fields);
+        record.setArgs(args);
+        return record;
+    }
+
+    private static void assertRecordEquals(PatternRecord expected, PatternRecord actual) {
+        assertEquals(expected.getId(), actual.getId());
+        assertEquals(expected.getContext(), actual.getContext());
+        assertEquals(expected.getIndexPattern(), actual.getIndexPattern());
+        assertEquals(expected.getLevel(), actual.getLevel());
+        assertEquals(expected.getMethod(), actual.getMethod());
+        assertEquals(expected.getMessageRegEx(), actual.getMessageRegEx());
+        assertEquals(expected.getSegments(), actual.getSegments());
+        assertEquals(expected.getFields(), actual.getFields());
+        assertEquals(expected.getArgs(), actual.getArgs());
+    }
+}
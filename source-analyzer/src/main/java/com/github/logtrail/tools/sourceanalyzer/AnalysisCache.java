@@ -0,0 +1,182 @@
+package com.github.logtrail.tools.sourceanalyzer;
+
+import com.google.common.hash.Hashing;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * On disk cache of the log statements extracted from each source file, keyed by the hash of the
+ * file content. Entries also keep the hashes of the files loggers were resolved from, like the file
+ * declaring a logger of another class, and are only used while none of those changed either.
+ * The cache is discarded as a whole when the analyzer settings that affect the
+ * extracted statements (context, regex boundaries, index pattern) differ from the ones it was built with.
+ * Statements of files with loggers that could not be resolved are kept for {@link #getPrevious} only,
+ * as they may resolve differently once another file changes.
+ * Safe to use from multiple analyzer threads.
+ */
+class AnalysisCache {
+    private static final int VERSION = 3;
+    private static final Logger LOGGER = LoggerFactory.getLogger(AnalysisCache.class);
+    //content hash marker of dependencies that no longer exist
+    private static final String MISSING = "";
+    private final Path cacheFile;
+    private final Path root;
+    private final String settings;
+    private Map<String, Entry> previousEntries = new HashMap<>();
+    private final Map<String, Entry> currentEntries = new ConcurrentHashMap<>();
+    //hashes of the dependencies read in this run
+    private final Map<String, String> dependencyHashes = new ConcurrentHashMap<>();
+    private final AtomicInteger hits = new AtomicInteger(), misses = new AtomicInteger();
+
+    /**
+     * @param root directory the paths of the files and of their dependencies are relative to
+     */
+    AnalysisCache(Path cacheFile, Path root, String settings) {
+        this.cacheFile = cacheFile;
+        this.root = root;
+        this.settings = settings;
+    }
+
+    void load() {
+        if (!Files.exists(cacheFile)) {
+            LOGGER.info("No analysis cache found at {}", cacheFile);
+            return;
+        }
+        try (Reader reader = Files.newBufferedReader(cacheFile, StandardCharsets.UTF_8)) {
+            CacheData data = new Gson().fromJson(reader, CacheData.class);
+            if (data == null || data.version != VERSION || !settings.equals(data.settings) || data.files == null) {
+                LOGGER.info("Analysis cache {} was built with different settings. Ignoring it", cacheFile);
+            } else {
+                previousEntries = data.files;
+                LOGGER.info("Loaded {} files from analysis cache {}", previousEntries.size(), cacheFile);
+            }
+        } catch (IOException | JsonParseException e) {
+            LOGGER.warn("Cannot read analysis cache {}. Ignoring it", cacheFile, e);
+        }
+    }
+
+    /**
+     * @return statements extracted by an earlier run from the same content or null if the file
+     * or one of its dependencies has changed or it was not analyzed before
+     */
+    List<LogStatement> get(String file, String hash) {
+        Entry entry = previousEntries.get(file);
+        if (entry != null && !entry.unresolved && hash.equals(entry.hash) && dependenciesUnchanged(entry)) {
+            currentEntries.put(file, entry);
+            hits.incrementAndGet();
+            return entry.statements;
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * @return statements extracted from the file by the previous run irrespective of its current content
+     */
+    List<LogStatement> getPrevious(String file) {
+        Entry entry = previousEntries.get(file);
+        return entry != null ? entry.statements : null;
+    }
+
+    /**
+     * @param dependencies files the loggers of the file were resolved from
+     * @param unresolved   if some loggers of the file could not be resolved, the statements are not reused
+     */
+    void put(String file, String hash, List<LogStatement> statements, Set<Path> dependencies, boolean unresolved) {
+        Map<String, String> hashes = null;
+        if (!dependencies.isEmpty()) {
+            hashes = new HashMap<>();
+            for (Path dependency : dependencies) {
+                String path = root.toAbsolutePath().relativize(dependency.toAbsolutePath()).toString();
+                hashes.put(path, getDependencyHash(path));
+            }
+        }
+        currentEntries.put(file, new Entry(hash, statements, hashes, unresolved));
+    }
+
+    /**
+     * Writes the entries looked up or added in this run. Entries of files that no longer exist are dropped.
+     */
+    void save() throws IOException {
+        CacheData data = new CacheData();
+        data.version = VERSION;
+        data.settings = settings;
+        data.files = new HashMap<>(currentEntries);
+        Path tempFile = cacheFile.resolveSibling(cacheFile.getFileName() + ".tmp");
+        try (Writer writer = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+            new Gson().toJson(data, writer);
+        }
+        Files.move(tempFile, cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        LOGGER.info("Saved {} files to analysis cache {}", data.files.size(), cacheFile);
+    }
+
+    int getHits() {
+        return hits.get();
+    }
+
+    int getMisses() {
+        return misses.get();
+    }
+
+    private boolean dependenciesUnchanged(Entry entry) {
+        if (entry.dependencies != null) {
+            for (Map.Entry<String, String> dependency : entry.dependencies.entrySet()) {
+                if (!dependency.getValue().equals(getDependencyHash(dependency.getKey()))) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private String getDependencyHash(String path) {
+        return dependencyHashes.computeIfAbsent(path, key -> {
+            try {
+                return hash(Files.readAllBytes(root.resolve(key)));
+            } catch (IOException e) {
+                return MISSING;
+            }
+        });
+    }
+
+    static String hash(byte[] content) {
+        return Hashing.murmur3_128().hashBytes(content).toString();
+    }
+
+    private static class CacheData {
+        private int version;
+        private String settings;
+        private Map<String, Entry> files;
+    }
+
+    private static class Entry {
+        private String hash;
+        private List<LogStatement> statements;
+        //relative path -> content hash, null without dependencies
+        private Map<String, String> dependencies;
+        private boolean unresolved;
+
+        Entry(String hash, List<LogStatement> statements, Map<String, String> dependencies, boolean unresolved) {
+            this.hash = hash;
+            this.statements = statements;
+            this.dependencies = dependencies;
+            this.unresolved = unresolved;
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package com.github.logtrail.tools.sourceanalyzer;
+
+import com.google.gson.GsonBuilder;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Timings and counters of an analysis run, written as a JSON report. Phase times of the work done
+ * by the analyzer workers (read, parse, extract, regex) are summed over all workers, so they can add
+ * up to more than the wall time. The extract phase excludes the symbol solver lookups (resolve) and
+ * the regex conversion of the messages, except in the per file times, and includes the analysis of
+ * class files, which are not parsed. Per file parse times are kept in a histogram with power of two
+ * buckets, percentiles are the upper bound of their bucket, the max is exact. Only the slowest files are kept.
+ */
+class AnalysisProfile {
+    enum Phase {
+        WALK, READ, PARSE, EXTRACT, RESOLVE, REGEX, OUTPUT
+    }
+
+    private final int topN;
+    private final long startNanos = System.nanoTime();
+    private final Map<Phase, LongAdder> phaseNanos = new EnumMap<>(Phase.class);
+    private final LongAdder parsedBytes = new LongAdder();
+    //bucket i counts the parse times of less than 2^i microseconds
+    private final AtomicLongArray parseHistogram = new AtomicLongArray(64);
+    private final LongAccumulator maxParseNanos = new LongAccumulator(Math::max, 0);
+    private final PriorityQueue<FileTiming> slowestFiles =
+            new PriorityQueue<>(Comparator.comparingLong((FileTiming timing) -> timing.parseNanos));
+    private final Map<String, DirectoryTiming> directories = new ConcurrentHashMap<>();
+
+    /**
+     * @param topN number of slowest files and directories to report
+     */
+    AnalysisProfile(int topN) {
+        this.topN = topN;
+        for (Phase phase : Phase.values()) {
+            phaseNanos.put(phase, new LongAdder());
+        }
+    }
+
+    void addTime(Phase phase, long nanos) {
+        phaseNanos.get(phase).add(nanos);
+    }
+
+    long getTime(Phase phase) {
+        return phaseNanos.get(phase).sum();
+    }
+
+    long getParsedBytes() {
+        return parsedBytes.sum();
+    }
+
+    /**
+     * Records a parsed file.
+     *
+     * @param directory directory of the file, to aggregate the parse times per directory
+     */
+    void addFile(String file, String directory, int bytes, long parseNanos, long extractNanos, int logs) {
+        addTime(Phase.PARSE, parseNanos);
+        addTime(Phase.EXTRACT, extractNanos);
+        parsedBytes.add(bytes);
+        long micros = TimeUnit.NANOSECONDS.toMicros(parseNanos);
+        parseHistogram.incrementAndGet(64 - Long.numberOfLeadingZeros(micros));
+        maxParseNanos.accumulate(parseNanos);
+        DirectoryTiming directoryTiming = directories.computeIfAbsent(directory != null ? directory : "",
+                key -> new DirectoryTiming());
+        directoryTiming.parseNanos.add(parseNanos);
+        directoryTiming.files.increment();
+        synchronized (slowestFiles) {
+            if (slowestFiles.size() < topN || slowestFiles.peek().parseNanos < parseNanos) {
+                slowestFiles.add(new FileTiming(file, bytes, parseNanos, extractNanos, logs));
+                if (slowestFiles.size() > topN) {
+                    slowestFiles.poll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the report with the phase times, the parse time percentiles, the slowest files and
+     * directories and the given counters.
+     */
+    void write(Path file, Map<String, Object> counters) throws IOException {
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("wallMillis", millis(System.nanoTime() - startNanos));
+        report.put("counters", counters);
+        Map<String, Object> phases = new LinkedHashMap<>();
+        for (Phase phase : Phase.values()) {
+            //resolve and regex times are measured separately from extract times, their difference can be negative
+            long nanos = phase == Phase.EXTRACT ?
+                    Math.max(0, getTime(phase) - getTime(Phase.RESOLVE) - getTime(Phase.REGEX)) : getTime(phase);
+            phases.put(phase.name().toLowerCase(), millis(nanos));
+        }
+        report.put("phaseMillis", phases);
+        report.put("parsedBytes", getParsedBytes());
+
+        long[] buckets = new long[parseHistogram.length()];
+        long count = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = parseHistogram.get(i);
+            count += buckets[i];
+        }
+        Map<String, Object> parseTimes = new LinkedHashMap<>();
+        parseTimes.put("files", count);
+        parseTimes.put("p50", percentile(buckets, count, 0.50));
+        parseTimes.put("p90", percentile(buckets, count, 0.90));
+        parseTimes.put("p99", percentile(buckets, count, 0.99));
+        parseTimes.put("max", millis(maxParseNanos.get()));
+        report.put("parseMillis", parseTimes);
+
+        List<FileTiming> files;
+        synchronized (slowestFiles) {
+            files = new ArrayList<>(slowestFiles);
+        }
+        files.sort(Comparator.comparingLong((FileTiming timing) -> timing.parseNanos).reversed());
+        List<Map<String, Object>> slowest = new ArrayList<>();
+        for (FileTiming timing : files) {
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("file", timing.file);
+            entry.put("bytes", timing.bytes);
+            entry.put("logs", timing.logs);
+            entry.put("parseMillis", millis(timing.parseNanos));
+            entry.put("extractMillis", millis(timing.extractNanos));
+            slowest.add(entry);
+        }
+        report.put("slowestFiles", slowest);
+
+        List<Map.Entry<String, DirectoryTiming>> sortedDirectories = new ArrayList<>(directories.entrySet());
+        sortedDirectories.sort(Comparator.comparingLong(
+                (Map.Entry<String, DirectoryTiming> entry) -> entry.getValue().parseNanos.sum()).reversed());
+        List<Map<String, Object>> slowestDirectories = new ArrayList<>();
+        for (Map.Entry<String, DirectoryTiming> directory : sortedDirectories.subList(0, Math.min(topN, sortedDirectories.size()))) {
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("directory", directory.getKey());
+            entry.put("files", directory.getValue().files.sum());
+            entry.put("parseMillis", millis(directory.getValue().parseNanos.sum()));
+            slowestDirectories.add(entry);
+        }
+        report.put("slowestDirectories", slowestDirectories);
+
+        try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            new GsonBuilder().setPrettyPrinting().create().toJson(report, writer);
+        }
+    }
+
+    //Upper bound in millis of the bucket of the given percentile
+    private static double percentile(long[] buckets, long count, double percentile) {
+        long rank = Math.max(1, (long) Math.ceil(count * percentile));
+        long seen = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            seen += buckets[i];
+            if (seen >= rank) {
+                return (1L << i) / 1000.0;
+            }
+        }
+        return 0;
+    }
+
+    private static double millis(long nanos) {
+        return Math.round(nanos / 1000.0) / 1000.0;
+    }
+
+    private static class FileTiming {
+        private final String file;
+        private final int bytes, logs;
+        private final long parseNanos, extractNanos;
+
+        FileTiming(String file, int bytes, long parseNanos, long extractNanos, int logs) {
+            this.file = file;
+            this.bytes = bytes;
+            this.parseNanos = parseNanos;
+            this.extractNanos = extractNanos;
+            this.logs = logs;
+        }
+    }
+
+    private static class DirectoryTiming {
+        private final LongAdder parseNanos = new LongAdder(), files = new LongAdder();
+    }
+}
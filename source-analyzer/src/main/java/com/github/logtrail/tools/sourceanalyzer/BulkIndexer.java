@@ -0,0 +1,223 @@
+package com.github.logtrail.tools.sourceanalyzer;
+
+import io.searchbox.action.BulkableAction;
+import io.searchbox.client.JestClient;
+import io.searchbox.core.Bulk;
+import io.searchbox.core.BulkResult;
+import io.searchbox.core.DocumentResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.*;
+
+/**
+ * Indexes and deletes documents in bulk requests of at most maxActions documents and maxBytes bytes, with at
+ * most concurrentRequests requests in flight. Adding documents blocks while that many requests are
+ * in flight. Documents rejected because the cluster is overloaded (429 and 503) are retried with
+ * exponential backoff, sending only the rejected documents again. Other rejections fail the upload,
+ * reported by the next call to add or flush. Deleting a document that is not found (404) succeeds, the
+ * document being already gone.
+ */
+class BulkIndexer {
+    private static final Logger LOGGER = LoggerFactory.getLogger(BulkIndexer.class);
+    private static final long MAX_BACKOFF_MILLIS = 30000;
+    //Overhead of the action line of a document in a bulk request
+    private static final int ACTION_BYTES = 64;
+    private final JestClient client;
+    private final int maxActions, maxRetries;
+    private final long maxBytes, initialBackoffMillis;
+    private final Semaphore inFlight;
+    private final ExecutorService executor;
+    private final List<Future<Integer>> pending = new ArrayList<>();
+    private List<BulkableAction<DocumentResult>> chunk = new ArrayList<>();
+    private long chunkBytes = 0;
+    private int indexedCount = 0;
+
+    BulkIndexer(JestClient client, int maxActions, long maxBytes, int concurrentRequests,
+                int maxRetries, long initialBackoffMillis) {
+        this.client = client;
+        this.maxActions = maxActions;
+        this.maxBytes = maxBytes;
+        this.maxRetries = maxRetries;
+        this.initialBackoffMillis = initialBackoffMillis;
+        this.inFlight = new Semaphore(concurrentRequests);
+        this.executor = Executors.newFixedThreadPool(concurrentRequests, runnable -> {
+            Thread thread = new Thread(runnable, "bulk-indexer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @param action index or delete action
+     * @param bytes  size of the document source
+     */
+    void add(BulkableAction<DocumentResult> action, int bytes) throws IOException {
+        if (!chunk.isEmpty() && chunkBytes + bytes + ACTION_BYTES > maxBytes) {
+            dispatch();
+        }
+        chunk.add(action);
+        chunkBytes += bytes + ACTION_BYTES;
+        if (chunk.size() >= maxActions) {
+            dispatch();
+        }
+    }
+
+    /**
+     * Sends the buffered documents and waits for all requests in flight.
+     *
+     * @throws IOException if any document could not be indexed
+     */
+    void flush() throws IOException {
+        dispatch();
+        IOException failure = null;
+        for (Future<Integer> result : pending) {
+            try {
+                indexedCount += await(result);
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        pending.clear();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * @return number of documents indexed or deleted by the completed requests
+     */
+    int getIndexedCount() {
+        return indexedCount;
+    }
+
+    void close() {
+        executor.shutdownNow();
+    }
+
+    private void dispatch() throws IOException {
+        if (chunk.isEmpty()) {
+            return;
+        }
+        //Report failures of completed requests before sending more
+        for (Iterator<Future<Integer>> iterator = pending.iterator(); iterator.hasNext(); ) {
+            Future<Integer> result = iterator.next();
+            if (result.isDone()) {
+                iterator.remove();
+                indexedCount += await(result);
+            }
+        }
+        List<BulkableAction<DocumentResult>> actions = chunk;
+        long bytes = chunkBytes;
+        chunk = new ArrayList<>();
+        chunkBytes = 0;
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for bulk requests");
+        }
+        try {
+            pending.add(executor.submit(() -> {
+                try {
+                    return send(actions, bytes);
+                } finally {
+                    inFlight.release();
+                }
+            }));
+        } catch (RejectedExecutionException e) {
+            inFlight.release();
+            throw new IOException("Bulk indexer is closed", e);
+        }
+    }
+
+    private static int await(Future<Integer> result) throws IOException {
+        try {
+            return result.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Exception while writing patterns", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for bulk requests");
+        }
+    }
+
+    //Returns the number of indexed documents
+    private int send(List<BulkableAction<DocumentResult>> actions, long bytes) throws IOException, InterruptedException {
+        long backoffMillis = initialBackoffMillis;
+        int indexed = 0, chunkSize = actions.size();
+        for (int attempt = 1; ; attempt++) {
+            long start = System.nanoTime();
+            List<BulkableAction<DocumentResult>> retries = new ArrayList<>();
+            List<String> errors = new ArrayList<>();
+            String retryError = null;
+            BulkResult result = null;
+            try {
+                result = client.execute(new Bulk.Builder().addAction(actions).build());
+            } catch (IOException e) {
+                //Connection failures are retried like overloaded responses
+                retryError = e.toString();
+            }
+            if (result == null || isRetryable(result.getResponseCode())) {
+                retries = actions;
+                retryError = result != null ? result.getErrorMessage() : retryError;
+            } else if (result.getItems().size() != actions.size()) {
+                if (!result.isSucceeded()) {
+                    throw new IOException("Exception while writing patterns " + result.getErrorMessage());
+                }
+                indexed += actions.size();
+            } else {
+                List<BulkResult.BulkResultItem> items = result.getItems();
+                for (int i = 0; i < items.size(); i++) {
+                    BulkResult.BulkResultItem item = items.get(i);
+                    if (item.error == null && item.status < 300 || isMissingDelete(item)) {
+                        indexed++;
+                    } else if (isRetryable(item.status)) {
+                        retries.add(actions.get(i));
+                        retryError = item.error;
+                    } else {
+                        errors.add(item.status + " " + item.error);
+                    }
+                }
+            }
+            long millis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            LOGGER.info("Bulk request of {} documents ({} KB, attempt {}) took {} ms, {} documents/s, {} to retry",
+                    actions.size(), bytes * actions.size() / chunkSize / 1024, attempt, millis,
+                    (actions.size() - retries.size()) * 1000L / millis, retries.size());
+            if (!errors.isEmpty()) {
+                throw new IOException(errors.size() + " documents were rejected by elasticsearch, first error: "
+                        + errors.get(0));
+            }
+            if (retries.isEmpty()) {
+                return indexed;
+            }
+            if (attempt > maxRetries) {
+                throw new IOException("Cannot write " + retries.size() + " documents after " + attempt
+                        + " attempts: " + retryError);
+            }
+            Thread.sleep(backoffMillis);
+            backoffMillis = Math.min(backoffMillis * 2, MAX_BACKOFF_MILLIS);
+            actions = retries;
+        }
+    }
+
+    private static boolean isMissingDelete(BulkResult.BulkResultItem item) {
+        return "delete".equals(item.operation) && item.status == 404;
+    }
+
+    private static boolean isRetryable(int status) {
+        return status == 429 || status == 503;
+    }
+}
@@ -0,0 +1,284 @@
+package com.github.logtrail.tools.sourceanalyzer;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.text.MessageFormat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * Extracts log statements from compiled classes, in class directories and jar files, by looking for
+ * calls to the SLF4J Logger methods with a constant format string. Useful for libraries without sources.
+ * The context is the class declaring the logger field. As argument names are not available in
+ * bytecode, arguments are named arg1, arg2...
+ * Only calls whose receiver is a Logger field and whose format string is loaded right after it are
+ * recognized. Messages built with string concatenation are skipped.
+ */
+class ClassFileAnalyzer {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ClassFileAnalyzer.class);
+    private static final String SLF4J_LOGGER = "org/slf4j/Logger";
+    private static final String SLF4J_LOGGER_DESC = "L" + SLF4J_LOGGER + ";";
+    private final LogStatementFactory statementFactory;
+    private final JavaSrcAnalyzer.LogContext context;
+    private int classCount = 0, logCount = 0, unresolvedCount = 0;
+
+    ClassFileAnalyzer(LogStatementFactory statementFactory, JavaSrcAnalyzer.LogContext context) {
+        this.statementFactory = statementFactory;
+        this.context = context;
+    }
+
+    /**
+     * @param roots class directories or jar files
+     */
+    void analyze(List<Path> roots, List<LogStatementSink> sinks) throws IOException {
+        for (Path root : roots) {
+            System.out.println("Scanning classes : " + root);
+            if (Files.isDirectory(root)) {
+                List<Path> files = new ArrayList<>();
+                Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                        files.add(file);
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+                for (Path file : files) {
+                    if (file.toString().endsWith(".class")) {
+                        try (InputStream in = Files.newInputStream(file)) {
+                            analyzeClass(in, file, sinks);
+                        }
+                    } else if (file.toString().endsWith(".jar")) {
+                        analyzeJar(file, sinks);
+                    }
+                }
+            } else {
+                analyzeJar(root, sinks);
+            }
+        }
+        System.out.println(MessageFormat.format("Analyzed {0} logs in {1} classes and skipped {2} logs with non constant messages",
+                logCount, classCount, unresolvedCount));
+    }
+
+    private void analyzeJar(Path jar, List<LogStatementSink> sinks) throws IOException {
+        try (JarFile jarFile = new JarFile(jar.toFile())) {
+            Enumeration<JarEntry> entries = jarFile.entries();
+            while (entries.hasMoreElements()) {
+                JarEntry entry = entries.nextElement();
+                if (entry.getName().endsWith(".class")) {
+                    try (InputStream in = jarFile.getInputStream(entry)) {
+                        analyzeClass(in, jar + "!" + entry.getName(), sinks);
+                    }
+                }
+            }
+        }
+    }
+
+    private void analyzeClass(InputStream in, Object source, List<LogStatementSink> sinks) throws IOException {
+        List<LogStatement> statements = new ArrayList<>();
+        try {
+            new ClassReader(in).accept(new LogCallClassVisitor(statements, source), ClassReader.SKIP_FRAMES);
+        } catch (RuntimeException e) {
+            //Unsupported or corrupt class files should not stop the scan
+            LOGGER.warn("Exception while analyzing class {}", source, e);
+            return;
+        }
+        classCount++;
+        logCount += statements.size();
+        for (LogStatementSink sink : sinks) {
+            sink.write(statements);
+        }
+    }
+
+    private String getLogContext(String loggerOwner, String sourceFile) {
+        int slash = loggerOwner.lastIndexOf('/');
+        String packageName = slash != -1 ? loggerOwner.substring(0, slash).replace('/', '.') : null;
+        String binaryName = loggerOwner.substring(slash + 1);
+        //Nested classes are named after their own simple name, as done for source files
+        String simpleName = binaryName.substring(binaryName.lastIndexOf('$') + 1);
+        switch (context) {
+            case FILE:
+                if (sourceFile != null) {
+                    return sourceFile;
+                }
+                int dollar = binaryName.indexOf('$');
+                return (dollar != -1 ? binaryName.substring(0, dollar) : binaryName) + ".java";
+            case FQN:
+                return packageName != null ? packageName + "." + simpleName : simpleName;
+            default:
+                return simpleName;
+        }
+    }
+
+    private static String getMethodName(String name) {
+        if (name.startsWith("<")) { //constructors and static initializers
+            return null;
+        } else if (name.startsWith("lambda$")) { //lambda$<method>$<index>
+            String[] parts = name.split("\\$");
+            return parts.length > 1 ? parts[1] : name;
+        }
+        return name;
+    }
+
+    private static int countPlaceholders(String message) {
+        int count = 0;
+        for (int index = message.indexOf("{}"); index != -1; index = message.indexOf("{}", index + 2)) {
+            count++;
+        }
+        return count;
+    }
+
+    private class LogCallClassVisitor extends ClassVisitor {
+        private final List<LogStatement> statements;
+        private final Object source;
+        private String sourceFile;
+
+        LogCallClassVisitor(List<LogStatement> statements, Object source) {
+            super(Opcodes.ASM9);
+            this.statements = statements;
+            this.source = source;
+        }
+
+        @Override
+        public void visitSource(String source, String debug) {
+            this.sourceFile = source;
+        }
+
+        @Override
+        public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+            return new LogCallMethodVisitor(getMethodName(name));
+        }
+
+        /**
+         * Tracks, for every Logger field loaded on to the stack, whether the next instruction pushes a
+         * constant string. The pair is consumed by the next call on a Logger.
+         */
+        private class LogCallMethodVisitor extends MethodVisitor {
+            private final String method;
+            private final Deque<LoggerLoad> loggerLoads = new ArrayDeque<>();
+            private LoggerLoad lastLoad;
+
+            LogCallMethodVisitor(String method) {
+                super(Opcodes.ASM9);
+                this.method = method;
+            }
+
+            private void otherInstruction() {
+                lastLoad = null;
+            }
+
+            @Override
+            public void visitFieldInsn(int opcode, String owner, String name, String descriptor) {
+                otherInstruction();
+                if ((opcode == Opcodes.GETSTATIC || opcode == Opcodes.GETFIELD) && SLF4J_LOGGER_DESC.equals(descriptor)) {
+                    lastLoad = new LoggerLoad(owner);
+                    loggerLoads.push(lastLoad);
+                }
+            }
+
+            @Override
+            public void visitLdcInsn(Object value) {
+                if (lastLoad != null && value instanceof String) {
+                    lastLoad.message = (String) value;
+                }
+                otherInstruction();
+            }
+
+            @Override
+            public void visitMethodInsn(int opcode, String owner, String name, String descriptor, boolean isInterface) {
+                otherInstruction();
+                if (opcode == Opcodes.INVOKEINTERFACE && SLF4J_LOGGER.equals(owner)) {
+                    LoggerLoad load = loggerLoads.poll();
+                    if (JavaSrcAnalyzer.LOG_METHODS.contains(name) && descriptor.startsWith("(Ljava/lang/String;")) {
+                        if (load != null && load.message != null) {
+                            List<String> args = new ArrayList<>();
+                            for (int i = 1; i <= countPlaceholders(load.message); i++) {
+                                args.add("arg" + i);
+                            }
+                            statements.add(statementFactory.create(getLogContext(load.owner, sourceFile), name,
+                                    method, load.message, args, source));
+                        } else {
+                            unresolvedCount++;
+                            LOGGER.debug("Cannot resolve logger statement in method {} of {}", method, source);
+                        }
+                    }
+                }
+            }
+
+            @Override
+            public void visitInsn(int opcode) {
+                otherInstruction();
+            }
+
+            @Override
+            public void visitIntInsn(int opcode, int operand) {
+                otherInstruction();
+            }
+
+            @Override
+            public void visitVarInsn(int opcode, int varIndex) {
+                otherInstruction();
+            }
+
+            @Override
+            public void visitTypeInsn(int opcode, String type) {
+                otherInstruction();
+            }
+
+            @Override
+            public void visitInvokeDynamicInsn(String name, String descriptor, Handle bootstrapMethodHandle,
+                                               Object... bootstrapMethodArguments) {
+                otherInstruction();
+            }
+
+            @Override
+            public void visitJumpInsn(int opcode, Label label) {
+                otherInstruction();
+            }
+
+            @Override
+            public void visitIincInsn(int varIndex, int increment) {
+                otherInstruction();
+            }
+
+            @Override
+            public void visitTableSwitchInsn(int min, int max, Label dflt, Label... labels) {
+                otherInstruction();
+            }
+
+            @Override
+            public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels) {
+                otherInstruction();
+            }
+
+            @Override
+            public void visitMultiANewArrayInsn(String descriptor, int numDimensions) {
+                otherInstruction();
+            }
+        }
+    }
+
+    private static class LoggerLoad {
+        private final String owner;
+        private String message;
+
+        LoggerLoad(String owner) {
+            this.owner = owner;
+        }
+    }
+}
@@ -1,23 +1,31 @@
 package com.github.logtrail.tools.sourceanalyzer;
 
+import com.github.logtrail.tools.common.FailoverJestClient;
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
 import io.searchbox.client.JestClient;
-import io.searchbox.client.JestClientFactory;
 import io.searchbox.client.JestResult;
-import io.searchbox.client.config.HttpClientConfig;
 import io.searchbox.core.*;
 import io.searchbox.indices.CreateIndex;
 import io.searchbox.indices.DeleteIndex;
 import io.searchbox.indices.IndicesExists;
+import io.searchbox.indices.Refresh;
+import io.searchbox.indices.aliases.AddAliasMapping;
+import io.searchbox.indices.aliases.AliasMapping;
+import io.searchbox.indices.aliases.GetAliases;
+import io.searchbox.indices.aliases.ModifyAliases;
+import io.searchbox.indices.aliases.RemoveAliasMapping;
 import io.searchbox.indices.mapping.PutMapping;
 import io.searchbox.params.Parameters;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.*;
 import java.util.stream.Collectors;
 
 /**
@@ -26,40 +34,304 @@ import java.util.stream.Collectors;
 public class ElasticOutput {
     private final String INDEX_NAME = ".logtrail";
     private final String TYPE_NAME = "pattern";
+    private static final int DELTA_QUERY_SIZE = 1000;
+    private static final String CONTENT_HASH = "contentHash";
     private JestClient elasticClient;
     private static final Logger LOGGER = LoggerFactory.getLogger(ElasticOutput.class);
-    private Map<String, LogStatement> logStatementsMap;
+    //Patterns are indexed with their message id as document id, so writing a pattern twice does not
+    //duplicate it. The message id only covers the context and the regex, so documents also hold a hash of
+    //their content and a pattern whose other fields (args, fields, level, method) changed is indexed again.
+    //Message ids of the patterns already in the index mapped to their content hash, null for older documents,
+    //and message ids of the patterns written since init
+    private Map<String, String> existingMessageIds;
+    private final Set<String> writtenMessageIds = new HashSet<>();
+    //Ids of documents indexed with a generated id by older versions, replaced by documents with message ids
+    private final List<String> legacyIds = new ArrayList<>();
+    private int newPatternCount = 0;
+    private final BulkIndexer bulkIndexer;
+    private final Gson gson = new Gson();
+    //Index written to: the .logtrail index or alias, or a new version of it created by initVersion
+    private String writeIndex = INDEX_NAME;
+    private int retainedVersions;
+    private boolean published = false;
 
     public ElasticOutput(String url) {
-        JestClientFactory factory = new JestClientFactory();
-        factory.setHttpClientConfig(new HttpClientConfig
-                .Builder(url)
-                .multiThreaded(true).build());
-        elasticClient = factory.getObject();
+        this(url, new Properties());
     }
 
-    public void init() throws Exception {
+    /**
+     * @param url        comma separated urls of the elasticsearch nodes
+     * @param properties bulk request settings: elasticsearch.bulk.actions, elasticsearch.bulk.bytes,
+     *                   elasticsearch.bulk.concurrent.requests, elasticsearch.bulk.max.retries and
+     *                   elasticsearch.bulk.backoff.millis, and the node settings of {@link FailoverJestClient}
+     */
+    public ElasticOutput(String url, Properties properties) {
+        int concurrentRequests = Integer.parseInt(properties.getProperty("elasticsearch.bulk.concurrent.requests", "2"));
+        if (concurrentRequests < 1) {
+            throw new IllegalArgumentException("elasticsearch.bulk.concurrent.requests should be at least 1 : "
+                    + concurrentRequests);
+        }
+        Properties clientProperties = new Properties();
+        //bulk requests in flight and the request of the caller
+        clientProperties.setProperty("elasticsearch.max.connections.per.node", String.valueOf(concurrentRequests + 1));
+        clientProperties.putAll(properties);
+        elasticClient = new FailoverJestClient(url, clientProperties);
+        bulkIndexer = new BulkIndexer(elasticClient,
+                Integer.parseInt(properties.getProperty("elasticsearch.bulk.actions", "1000")),
+                Long.parseLong(properties.getProperty("elasticsearch.bulk.bytes", String.valueOf(5 * 1024 * 1024))),
+                concurrentRequests,
+                Integer.parseInt(properties.getProperty("elasticsearch.bulk.max.retries", "5")),
+                Long.parseLong(properties.getProperty("elasticsearch.bulk.backoff.millis", "100")));
+    }
+
+    public void init() throws IOException {
+        init(null);
+    }
+
+    /**
+     * Creates the index or fetches the ids of the patterns of the index pattern, to write only new
+     * patterns and delete the patterns that are not written anymore with {@link #deleteRemoved()}.
+     *
+     * @param indexPattern only patterns of this index pattern are synced, all patterns if null
+     */
+    public void init(String indexPattern) throws IOException {
         if (!indexExists()) {
             LOGGER.info("Index does not exist. Creating...");
             if (!createIndex()) {
                 LOGGER.error("Unable to create index {}. Exiting..", INDEX_NAME);
-                throw new Exception("Cannot create index " + INDEX_NAME);
+                throw new IOException("Cannot create index " + INDEX_NAME);
             }
         } else {
-            List<LogStatement> statementList = fetchLogStatements();
-            LOGGER.info("Fetched {} patterns from ES", statementList.size());
-            logStatementsMap = new HashMap<>();
-            for (LogStatement logStatement : statementList) {
-                logStatementsMap.put(logStatement.getMessageId(), logStatement);
+            existingMessageIds = new HashMap<>();
+            fetchIds(indexPattern);
+            LOGGER.info("Fetched {} pattern ids from ES", existingMessageIds.size() + legacyIds.size());
+        }
+    }
+
+    /**
+     * Writes the patterns to a new index .logtrail-&lt;timestamp&gt; instead of the .logtrail index.
+     * Readers keep reading the patterns of the previous run through the .logtrail alias until
+     * {@link #publishVersion()} moves the alias to the new index. The new index is deleted by
+     * {@link #cleanup()} if it was not published.
+     *
+     * @param retainedVersions number of versions to keep, including the new one
+     */
+    public void initVersion(int retainedVersions) throws IOException {
+        if (retainedVersions < 1) {
+            throw new IllegalArgumentException("At least the published version should be retained : " + retainedVersions);
+        }
+        this.retainedVersions = retainedVersions;
+        SimpleDateFormat format = new SimpleDateFormat("yyyyMMddHHmmss");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        String versionIndex = INDEX_NAME + "-" + format.format(new Date());
+        if (!createIndex(versionIndex)) {
+            throw new IOException("Cannot create index " + versionIndex);
+        }
+        writeIndex = versionIndex;
+        LOGGER.info("Writing patterns to new index {}", writeIndex);
+    }
+
+    /**
+     * Checks that the index created by initVersion holds all the written patterns, atomically moves the
+     * .logtrail alias to it and deletes the versions older than the retained ones. Should be called only
+     * once all patterns were written.
+     *
+     * @return name of the published index
+     * @throws IOException if the index does not hold all the patterns, the alias is not moved then
+     */
+    public String publishVersion() throws IOException {
+        flush();
+        JestResult refresh = elasticClient.execute(new Refresh.Builder().addIndex(writeIndex).build());
+        if (!refresh.isSucceeded()) {
+            throw new IOException("Cannot refresh index " + writeIndex + " " + refresh.getErrorMessage());
+        }
+        CountResult count = elasticClient.execute(new Count.Builder().addIndex(writeIndex).addType(TYPE_NAME).build());
+        if (!count.isSucceeded()) {
+            throw new IOException("Cannot count patterns of index " + writeIndex + " " + count.getErrorMessage());
+        }
+        if (count.getCount().longValue() != writtenMessageIds.size()) {
+            throw new IOException("Index " + writeIndex + " holds " + count.getCount().longValue() + " patterns instead of "
+                    + writtenMessageIds.size() + ". Not moving alias " + INDEX_NAME);
+        }
+
+        Map<String, Boolean> versions = getVersions();
+        List<AliasMapping> mappings = new ArrayList<>();
+        for (Map.Entry<String, Boolean> version : versions.entrySet()) {
+            if (version.getValue()) {
+                mappings.add(new RemoveAliasMapping.Builder(version.getKey(), INDEX_NAME).build());
+            }
+        }
+        if (mappings.isEmpty() && indexExists()) {
+            //An alias cannot have the name of an index. Readers see no patterns until the alias is added
+            LOGGER.warn("Replacing index {} with an alias", INDEX_NAME);
+            deletePatternsIndex();
+        }
+        mappings.add(new AddAliasMapping.Builder(writeIndex, INDEX_NAME).build());
+        JestResult result = elasticClient.execute(new ModifyAliases.Builder(mappings).build());
+        if (!result.isSucceeded()) {
+            throw new IOException("Cannot move alias " + INDEX_NAME + " to " + writeIndex + " " + result.getErrorMessage());
+        }
+        published = true;
+        LOGGER.info("Moved alias {} to {}", INDEX_NAME, writeIndex);
+
+        //Index names sort by their timestamp, newest first
+        List<String> expired = new ArrayList<>(versions.keySet());
+        expired.remove(writeIndex);
+        expired.sort(Comparator.reverseOrder());
+        for (String index : expired.subList(Math.min(retainedVersions - 1, expired.size()), expired.size())) {
+            JestResult delete = elasticClient.execute(new DeleteIndex.Builder(index).build());
+            if (delete.isSucceeded()) {
+                LOGGER.info("Deleted expired version {}", index);
+            } else {
+                LOGGER.warn("Cannot delete expired version {} {}", index, delete.getErrorMessage());
+            }
+        }
+        return writeIndex;
+    }
+
+    /**
+     * @return true if patterns are written to a new version of the index
+     */
+    public boolean isVersioned() {
+        return !INDEX_NAME.equals(writeIndex);
+    }
+
+    //Versions of the index, mapped to whether they hold the alias
+    private Map<String, Boolean> getVersions() throws IOException {
+        JestResult result = elasticClient.execute(new GetAliases.Builder().addIndex(INDEX_NAME + "-*").build());
+        if (!result.isSucceeded()) {
+            throw new IOException("Cannot list versions of " + INDEX_NAME + " " + result.getErrorMessage());
+        }
+        Map<String, Boolean> versions = new HashMap<>();
+        for (Map.Entry<String, JsonElement> index : result.getJsonObject().entrySet()) {
+            JsonObject aliases = index.getValue().getAsJsonObject().getAsJsonObject("aliases");
+            versions.put(index.getKey(), aliases != null && aliases.has(INDEX_NAME));
+        }
+        return versions;
+    }
+
+    /**
+     * Deletes the patterns fetched by init that were not written since and the patterns indexed
+     * by older versions without message id. Should be called only once all patterns were written.
+     *
+     * @return number of deleted patterns
+     */
+    public int deleteRemoved() throws IOException {
+        flush();
+        int count = 0;
+        if (existingMessageIds != null) {
+            for (String messageId : existingMessageIds.keySet()) {
+                if (!writtenMessageIds.contains(messageId)) {
+                    bulkIndexer.add(new Delete.Builder(messageId).index(writeIndex).type(TYPE_NAME).build(), 0);
+                    count++;
+                }
+            }
+        }
+        for (String id : legacyIds) {
+            bulkIndexer.add(new Delete.Builder(id).index(writeIndex).type(TYPE_NAME).build(), 0);
+            count++;
+        }
+        flush();
+        LOGGER.info("Deleted {} patterns from ES", count);
+        return count;
+    }
+
+    /**
+     * Applies the patterns added and removed by a change, without fetching the whole index.
+     * Only patterns of the given index pattern are deleted and added patterns already present with the same
+     * content are skipped.
+     */
+    public void applyDelta(List<LogStatement> added, Collection<String> removedMessageIds,
+                           String indexPattern) throws IOException {
+        if (!indexExists() && !createIndex()) {
+            throw new IOException("Cannot create index " + INDEX_NAME);
+        }
+        List<String> removedIds = new ArrayList<>(removedMessageIds);
+        for (int i = 0; i < removedIds.size(); i += DELTA_QUERY_SIZE) {
+            List<String> ids = removedIds.subList(i, Math.min(i + DELTA_QUERY_SIZE, removedIds.size()));
+            DeleteByQuery deleteByQuery = new DeleteByQuery.Builder(messageIdQuery(ids, indexPattern, false))
+                    .addIndex(INDEX_NAME).addType(TYPE_NAME).build();
+            JestResult result = elasticClient.execute(deleteByQuery);
+            if (!result.isSucceeded()) {
+                throw new IOException("Exception while deleting patterns " + result.getErrorMessage());
+            }
+        }
+        LOGGER.info("Deleted {} patterns from ES", removedIds.size());
+
+        existingMessageIds = new HashMap<>();
+        List<String> addedIds = added.stream().map(LogStatement::getMessageId).collect(Collectors.toList());
+        for (int i = 0; i < addedIds.size(); i += DELTA_QUERY_SIZE) {
+            List<String> ids = addedIds.subList(i, Math.min(i + DELTA_QUERY_SIZE, addedIds.size()));
+            Search search = new Search.Builder(messageIdQuery(ids, indexPattern, true))
+                    .addIndex(INDEX_NAME).addType(TYPE_NAME)
+                    .setParameter(Parameters.SIZE, ids.size())
+                    .build();
+            SearchResult searchResult = elasticClient.execute(search);
+            if (!searchResult.isSucceeded()) {
+                throw new IOException("Exception while fetching patterns " + searchResult.getErrorMessage());
             }
+            addIds(searchResult);
         }
+        int indexed = newPatternCount;
+        writeDocuments(added);
+        //Legacy documents of the added patterns are replaced by documents with message ids
+        for (String id : legacyIds) {
+            bulkIndexer.add(new Delete.Builder(id).index(INDEX_NAME).type(TYPE_NAME).build(), 0);
+        }
+        flush();
+        LOGGER.info("Indexed {} new or changed patterns to ES", newPatternCount - indexed);
     }
 
-    private void updateMapping() throws IOException {
+    //Matches the message ids on both text and keyword mappings, as older indices map messageId as text
+    private String messageIdQuery(List<String> messageIds, String indexPattern, boolean idsOnly) {
+        JsonArray ids = new JsonArray();
+        messageIds.forEach(ids::add);
+        JsonArray should = new JsonArray();
+        should.add(termsQuery("messageId", ids));
+        should.add(termsQuery("messageId.keyword", ids));
+        JsonObject messageIdBool = new JsonObject();
+        messageIdBool.add("should", should);
+        JsonObject messageIdQuery = new JsonObject();
+        messageIdQuery.add("bool", messageIdBool);
+
+        JsonArray filter = new JsonArray();
+        filter.add(messageIdQuery);
+        if (indexPattern != null) {
+            JsonObject term = new JsonObject();
+            term.addProperty("indexPattern", indexPattern);
+            JsonObject termQuery = new JsonObject();
+            termQuery.add("term", term);
+            filter.add(termQuery);
+        }
+        JsonObject bool = new JsonObject();
+        bool.add("filter", filter);
+        JsonObject query = new JsonObject();
+        query.add("bool", bool);
+        JsonObject request = new JsonObject();
+        request.add("query", query);
+        if (idsOnly) {
+            JsonArray source = new JsonArray();
+            source.add("messageId");
+            source.add(CONTENT_HASH);
+            request.add("_source", source);
+        }
+        return request.toString();
+    }
+
+    private static JsonObject termsQuery(String field, JsonArray values) {
+        JsonObject terms = new JsonObject();
+        terms.add(field, values);
+        JsonObject query = new JsonObject();
+        query.add("terms", terms);
+        return query;
+    }
+
+    private void updateMapping(String index) throws IOException {
         PutMapping putMapping = new PutMapping.Builder(
-                INDEX_NAME,
+                index,
                 TYPE_NAME,
-                "{ \"pattern\" : { \"properties\" : { \"indexPattern\" : {\"type\" : \"keyword\"} } } }"
+                "{ \"pattern\" : { \"properties\" : { \"indexPattern\" : {\"type\" : \"keyword\"}, " +
+                        "\"messageId\" : {\"type\" : \"keyword\"}, \"contentHash\" : {\"type\" : \"keyword\"} } } }"
         ).build();
         JestResult result = elasticClient.execute(putMapping);
         if (result.isSucceeded()) {
@@ -69,61 +341,107 @@ public class ElasticOutput {
         }
     }
 
+    /**
+     * Queues the patterns not in the index yet, or stored with a different content, for bulk indexing. Bulk
+     * requests are sent in the background, call {@link #flush()} to wait for them. Failures of earlier requests
+     * are thrown by later calls.
+     */
     public void writeDocuments(List<LogStatement> logStatements) throws IOException {
-        Bulk.Builder bulkRequest = new Bulk.Builder();
         for (LogStatement logStatement : logStatements) {
-            if (logStatementsMap == null || !logStatementsMap.containsKey(logStatement.getMessageId())) {
-                Index index = new Index.Builder(logStatement).index(INDEX_NAME).type(TYPE_NAME).build();
-                bulkRequest.addAction(index);
+            if (writtenMessageIds.add(logStatement.getMessageId())) {
+                JsonObject document = gson.toJsonTree(logStatement).getAsJsonObject();
+                String contentHash = AnalysisCache.hash(document.toString().getBytes(StandardCharsets.UTF_8));
+                if (existingMessageIds != null
+                        && contentHash.equals(existingMessageIds.get(logStatement.getMessageId()))) {
+                    continue;
+                }
+                document.addProperty(CONTENT_HASH, contentHash);
+                String source = document.toString();
+                Index index = new Index.Builder(source).index(writeIndex).type(TYPE_NAME)
+                        .id(logStatement.getMessageId()).build();
+                newPatternCount++;
+                bulkIndexer.add(index, source.getBytes(StandardCharsets.UTF_8).length);
             }
         }
-        JestResult result = elasticClient.execute(bulkRequest.build());
-        if (!result.isSucceeded()) {
-            throw new IOException("Exception while writing patterns " + result.getErrorMessage());
-        }
     }
 
-    private List<LogStatement> fetchLogStatements() {
-        List<LogStatement> patterns = new ArrayList<>();
-        try {
-            String matchAllQuery = "{\n" +
-                    "    \"query\": {\n" +
-                    "        \"match_all\": {}\n" +
-                    "    }\n" +
-                    "}";
-            Search search = new Search.Builder(matchAllQuery).addIndex(INDEX_NAME).addType(TYPE_NAME)
-                    .setParameter(Parameters.SCROLL, "1m")
-                    .setParameter(Parameters.SIZE, 1000)
-                    .build();
-            SearchResult searchResult = elasticClient.execute(search);
-            String scrollId = searchResult.getJsonObject().get("_scroll_id").getAsString();
-            if (searchResult.isSucceeded()) {
-                List<SearchResult.Hit<LogStatement, Void>> hits = searchResult.getHits(LogStatement.class);
-                patterns.addAll(hits.stream().map(hit -> hit.source).collect(Collectors.toList()));
+    /**
+     * @return number of patterns queued for indexing that were not in the index or had changed
+     */
+    public int getNewPatternCount() {
+        return newPatternCount;
+    }
+
+    /**
+     * Waits for the queued patterns to be indexed.
+     *
+     * @throws IOException if any pattern could not be indexed
+     */
+    public void flush() throws IOException {
+        bulkIndexer.flush();
+    }
+
+    //Scrolls the ids of the patterns of the index pattern, without their source except the message id and hash
+    private void fetchIds(String indexPattern) throws IOException {
+        JsonObject request = new JsonObject();
+        JsonObject query = new JsonObject();
+        if (indexPattern != null) {
+            JsonObject term = new JsonObject();
+            term.addProperty("indexPattern", indexPattern);
+            query.add("term", term);
+        } else {
+            query.add("match_all", new JsonObject());
+        }
+        request.add("query", query);
+        JsonArray source = new JsonArray();
+        source.add("messageId");
+        source.add(CONTENT_HASH);
+        request.add("_source", source);
+        Search search = new Search.Builder(request.toString()).addIndex(INDEX_NAME).addType(TYPE_NAME)
+                .setParameter(Parameters.SCROLL, "1m")
+                .setParameter(Parameters.SIZE, DELTA_QUERY_SIZE)
+                .build();
+        JestResult result = elasticClient.execute(search);
+        while (true) {
+            if (!result.isSucceeded()) {
+                throw new IOException("Exception while fetching pattern ids " + result.getErrorMessage());
+            }
+            if (addIds(result) == 0 || !result.getJsonObject().has("_scroll_id")) {
+                break;
             }
+            String scrollId = result.getJsonObject().get("_scroll_id").getAsString();
+            result = elasticClient.execute(new SearchScroll.Builder(scrollId, "1m").build());
+        }
+    }
 
-            while (scrollId != null) {
-                SearchScroll scroll = new SearchScroll.Builder(scrollId, "1m").build();
-                JestResult scrollResult = elasticClient.execute(scroll);
-                if (scrollResult.isSucceeded()) {
-                    List<LogStatement> logStatements = scrollResult.getSourceAsObjectList(LogStatement.class);
-                    if (logStatements.size() == 0) {
-                        break;
-                    }
-                    patterns.addAll(logStatements);
-                }
-                scrollId = scrollResult.getJsonObject().get("_scroll_id").getAsString();
+    //Adds the message ids and content hashes of the hits to the existing ids, or their document id to the
+    //legacy ids if they were not indexed with their message id. Returns the number of hits
+    private int addIds(JestResult result) {
+        JsonArray hits = result.getJsonObject().getAsJsonObject("hits").getAsJsonArray("hits");
+        for (JsonElement element : hits) {
+            JsonObject hit = element.getAsJsonObject();
+            String id = hit.get("_id").getAsString();
+            JsonObject source = hit.has("_source") ? hit.getAsJsonObject("_source") : null;
+            JsonElement messageId = source != null ? source.get("messageId") : null;
+            if (messageId != null && id.equals(messageId.getAsString())) {
+                JsonElement contentHash = source.get(CONTENT_HASH);
+                existingMessageIds.put(id, contentHash != null && !contentHash.isJsonNull() ?
+                        contentHash.getAsString() : null);
+            } else {
+                legacyIds.add(id);
             }
-        } catch (IOException e) {
-            LOGGER.error("Exception while fetching patterns ", e);
         }
-        return patterns;
+        return hits.size();
     }
 
     private boolean createIndex() throws IOException {
-        JestResult jestResult = elasticClient.execute(new CreateIndex.Builder(INDEX_NAME).build());
+        return createIndex(INDEX_NAME);
+    }
+
+    private boolean createIndex(String index) throws IOException {
+        JestResult jestResult = elasticClient.execute(new CreateIndex.Builder(index).build());
         if (jestResult.isSucceeded()) {
-            updateMapping();
+            updateMapping(index);
         }
         return jestResult.isSucceeded();
     }
@@ -139,6 +457,15 @@ public class ElasticOutput {
     }
 
     public void cleanup() {
+        bulkIndexer.close();
+        if (isVersioned() && !published) {
+            try {
+                elasticClient.execute(new DeleteIndex.Builder(writeIndex).build());
+                LOGGER.info("Deleted unpublished index {}", writeIndex);
+            } catch (IOException e) {
+                LOGGER.warn("Cannot delete unpublished index {}", writeIndex, e);
+            }
+        }
         if (elasticClient != null) {
             elasticClient.shutdownClient();
         }
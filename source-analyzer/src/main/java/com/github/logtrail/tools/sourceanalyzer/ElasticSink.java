@@ -0,0 +1,96 @@
+package com.github.logtrail.tools.sourceanalyzer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Buffers log statements and hands them to elasticsearch output in batches of batchSize statements,
+ * which are split in bulk requests by the output. To rebuild the index, all statements are kept until
+ * the analysis completes and the index is only deleted and written again then, so readers keep the
+ * patterns of the previous run while the source is analyzed, and keep them if the analysis fails.
+ */
+public class ElasticSink implements LogStatementSink {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ElasticSink.class);
+    private final ElasticOutput elasticOutput;
+    private final int batchSize;
+    private final List<LogStatement> batch;
+    private final boolean rebuild;
+    private int patternCount = 0;
+
+    public ElasticSink(ElasticOutput elasticOutput, int batchSize) {
+        this(elasticOutput, batchSize, false);
+    }
+
+    /**
+     * @param rebuild true to delete the index and write all statements again once the analysis completed,
+     *                the output should not be initialized then
+     */
+    public ElasticSink(ElasticOutput elasticOutput, int batchSize, boolean rebuild) {
+        this.elasticOutput = elasticOutput;
+        this.batchSize = batchSize;
+        this.batch = new ArrayList<>(batchSize);
+        this.rebuild = rebuild;
+    }
+
+    @Override
+    public void write(List<LogStatement> logStatements) throws IOException {
+        for (LogStatement logStatement : logStatements) {
+            batch.add(logStatement);
+            if (!rebuild && batch.size() >= batchSize) {
+                flush();
+            }
+        }
+    }
+
+    private void flush() throws IOException {
+        for (int start = 0; start < batch.size(); start += batchSize) {
+            elasticOutput.writeDocuments(batch.subList(start, Math.min(batch.size(), start + batchSize)));
+        }
+        patternCount += batch.size();
+        batch.clear();
+    }
+
+    @Override
+    public void complete() throws IOException {
+        if (rebuild) {
+            elasticOutput.deletePatternsIndex();
+            elasticOutput.init();
+            flush();
+            elasticOutput.flush();
+            System.out.println("Rebuilt index .logtrail with " + patternCount + " patterns");
+            return;
+        }
+        flush();
+        if (elasticOutput.isVersioned()) {
+            String index = elasticOutput.publishVersion();
+            System.out.println("Moved alias .logtrail to " + index);
+        } else {
+            int deleted = elasticOutput.deleteRemoved();
+            System.out.println("Deleted " + deleted + " patterns no longer in the source from elasticsearch");
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (rebuild) {
+                if (!batch.isEmpty()) {
+                    System.out.println("Not rebuilding index .logtrail as the analysis did not complete");
+                }
+                return;
+            }
+            flush();
+            elasticOutput.flush();
+            LOGGER.info("Wrote {} new or changed of {} patterns to ES", elasticOutput.getNewPatternCount(),
+                    patternCount);
+            System.out.println("Wrote " + elasticOutput.getNewPatternCount() + " new or changed of " + patternCount
+                    + " patterns to elasticsearch");
+        } finally {
+            elasticOutput.cleanup();
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package com.github.logtrail.tools.sourceanalyzer;
+
+import java.util.List;
+
+/**
+ * Log statements added to and removed from a single source file between two versions of it.
+ */
+public class FileDelta {
+    private String file;
+    private List<LogStatement> added;
+    private List<LogStatement> removed;
+
+    public FileDelta(String file, List<LogStatement> added, List<LogStatement> removed) {
+        this.file = file;
+        this.added = added;
+        this.removed = removed;
+    }
+
+    public String getFile() {
+        return file;
+    }
+
+    public List<LogStatement> getAdded() {
+        return added;
+    }
+
+    public List<LogStatement> getRemoved() {
+        return removed;
+    }
+}
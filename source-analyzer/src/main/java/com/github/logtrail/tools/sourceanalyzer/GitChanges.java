@@ -0,0 +1,92 @@
+package com.github.logtrail.tools.sourceanalyzer;
+
+import com.google.common.io.ByteStreams;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads changed files and file contents from a local git working tree using the git command line.
+ * All paths are relative to the directory the instance is created with.
+ */
+class GitChanges {
+    private final File workDir;
+
+    GitChanges(File workDir) {
+        this.workDir = workDir;
+    }
+
+    /**
+     * @param headRev revision to compare with or null to compare with the working tree
+     */
+    List<Change> diff(String baseRev, String headRev) throws IOException {
+        List<String> command = new ArrayList<>(Arrays.asList("diff", "--name-status", "--no-renames", "--relative", "-z", baseRev));
+        if (headRev != null) {
+            command.add(headRev);
+        }
+        String output = new String(git(command.toArray(new String[0])), StandardCharsets.UTF_8);
+        //With -z each entry is status NUL path NUL
+        String[] tokens = output.split("\0");
+        List<Change> changes = new ArrayList<>();
+        for (int i = 0; i + 1 < tokens.length; i += 2) {
+            changes.add(new Change(tokens[i].charAt(0), tokens[i + 1]));
+        }
+        return changes;
+    }
+
+    byte[] show(String rev, String path) throws IOException {
+        return git("show", rev + ":./" + path);
+    }
+
+    private byte[] git(String... args) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add("git");
+        command.addAll(Arrays.asList(args));
+        Process process = new ProcessBuilder(command)
+                .directory(workDir)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        byte[] output;
+        try (InputStream in = process.getInputStream()) {
+            output = ByteStreams.toByteArray(in);
+        }
+        try {
+            int exitCode = process.waitFor();
+            if (exitCode != 0) {
+                throw new IOException("Command " + command + " failed with exit code " + exitCode);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while running " + command);
+        }
+        return output;
+    }
+
+    static class Change {
+        private final char status;
+        private final String path;
+
+        Change(char status, String path) {
+            this.status = status;
+            this.path = path;
+        }
+
+        boolean isAdded() {
+            return status == 'A';
+        }
+
+        boolean isDeleted() {
+            return status == 'D';
+        }
+
+        String getPath() {
+            return path;
+        }
+    }
+}
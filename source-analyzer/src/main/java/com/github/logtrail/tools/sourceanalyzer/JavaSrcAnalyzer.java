@@ -3,7 +3,12 @@ package com.github.logtrail.tools.sourceanalyzer;
 import com.github.javaparser.JavaParser;
 import com.github.javaparser.ParseException;
 import com.github.javaparser.ParseProblemException;
+import com.github.javaparser.ParseResult;
+import com.github.javaparser.ParseStart;
+import com.github.javaparser.ParserConfiguration;
+import com.github.javaparser.Providers;
 import com.github.javaparser.ast.CompilationUnit;
+import com.github.javaparser.ast.Node;
 import com.github.javaparser.ast.NodeList;
 import com.github.javaparser.ast.PackageDeclaration;
 import com.github.javaparser.ast.body.ClassOrInterfaceDeclaration;
@@ -11,9 +16,6 @@ import com.github.javaparser.ast.body.FieldDeclaration;
 import com.github.javaparser.ast.body.MethodDeclaration;
 import com.github.javaparser.ast.body.VariableDeclarator;
 import com.github.javaparser.ast.expr.*;
-import com.google.common.collect.HashMultimap;
-import com.google.common.collect.SetMultimap;
-import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -22,17 +24,21 @@ import org.apache.commons.cli.Options;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.text.MessageFormat;
 import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import java.util.regex.PatternSyntaxException;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Created by siva on 7/1/17.
@@ -46,18 +52,37 @@ public class JavaSrcAnalyzer {
     private String srcRoot;
     private List<String> excludes;
     private String outputFile;
-    private static final Set<String> LOG_METHODS = new HashSet<String>();
-    private int fileCount = 0, logCount = 0, defaultContextCount = 0;
-    private List<LogStatement> logStatements = new ArrayList<>();
-    private static final String REGEX_SPECIAL_CHARS = "[\\<\\(\\[\\\\\\^\\-\\=\\$\\!\\|\\]\\)‌​\\?\\*\\+\\.\\>]";
+    static final Set<String> LOG_METHODS = new HashSet<String>();
+    private final AtomicInteger fileCount = new AtomicInteger(), logCount = new AtomicInteger(),
+            defaultContextCount = new AtomicInteger(), failedFileCount = new AtomicInteger(),
+            skippedFileCount = new AtomicInteger(), unresolvedMessageCount = new AtomicInteger();
+    private final AtomicLong skippedBytes = new AtomicLong();
     private static Logger LOGGER = LoggerFactory.getLogger(JavaSrcAnalyzer.class);
     private static final String FORMAT_ANCHOR = "{}";
-    private static final Pattern LOG_FORMAT_ANCHOR_PATTERN = Pattern.compile("\\{}");
-    private static final Pattern REGEX_SPECIAL_CHARS_PATTERN = Pattern.compile(REGEX_SPECIAL_CHARS);
     private static final String DEFAULT_CONTEXT_NAME = "default-context";
+    //JavaParser instances are not thread safe. Comments are not needed to find log calls
+    private static final ThreadLocal<JavaParser> PARSER = ThreadLocal.withInitial(() ->
+            new JavaParser(new ParserConfiguration().setAttributeComments(false)));
     private LogContext context;
+    private LogStatementFactory statementFactory;
     private String elasticsearchUrl, indexPattern;
-    private boolean appendRegExBoundaries, coldWrite;
+    //elasticsearch.* settings of the output
+    private Properties elasticsearchSettings = new Properties();
+    private boolean appendRegExBoundaries, coldWrite, coldWriteVersioned;
+    private int retainedVersions = 3;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private long fileTimeoutSeconds = 0;
+    private FailurePolicy failurePolicy = FailurePolicy.SKIP;
+    private AnalysisCache cache;
+    private JsonFileSink.Format outputFormat = JsonFileSink.Format.JSON;
+    private String bundleFile;
+    private int elasticsearchBatchSize = 1000;
+    private LogCallPreFilter preFilter = new LogCallPreFilter(LOG_METHODS);
+    private String changedFiles, gitBaseRev, gitHeadRev, deltaFile;
+    private List<Path> classesRoots;
+    private LoggerResolver loggerResolver;
+    private AnalysisProfile profile = new AnalysisProfile(20);
+    private String profileFile;
 
     static {
         LOG_METHODS.add("debug");
@@ -74,11 +99,21 @@ public class JavaSrcAnalyzer {
         this.excludes = excludes;
         this.outputFile = outputFile;
         this.context = LogContext.valueOf(context);
+        this.statementFactory = new LogStatementFactory(this.context, appendRegExBoundaries, indexPattern);
+        this.loggerResolver = new LoggerResolver(this.context, true);
     }
 
     public JavaSrcAnalyzer(Properties properties) {
-        this.srcRoot = properties.getProperty("src.root");
-        if (!new File(srcRoot).exists()) {
+        this.srcRoot = emptyToNull(properties.getProperty("src.root"));
+        String classesRoot = emptyToNull(properties.getProperty("classes.root"));
+        if (classesRoot != null) {
+            this.classesRoots = new ArrayList<>();
+            for (String root : classesRoot.split(",")) {
+                classesRoots.add(Paths.get(root.trim()));
+            }
+        }
+        //src.root is optional when only compiled classes are analyzed
+        if ((srcRoot != null || classesRoots == null) && (srcRoot == null || !new File(srcRoot).exists())) {
             throw new IllegalArgumentException("Cannot find src dir :" + srcRoot);
         }
         String excludes = properties.getProperty("src.excludes");
@@ -88,166 +123,559 @@ public class JavaSrcAnalyzer {
         this.outputFile = properties.getProperty("patterns.out.file");
         this.context = LogContext.valueOf(properties.getProperty("context"));
         this.elasticsearchUrl = properties.getProperty("elasticsearch.url");
+        this.elasticsearchSettings = properties;
         this.appendRegExBoundaries = Boolean.parseBoolean(properties.getProperty("append.regex.boundaries","true"));
         this.indexPattern = properties.getProperty("logtrail.index.pattern","logstash-*");
         this.coldWrite = Boolean.parseBoolean(properties.getProperty("cold.write","false"));
+        this.coldWriteVersioned = Boolean.parseBoolean(properties.getProperty("cold.write.versioned", "false"));
+        this.retainedVersions = Integer.parseInt(properties.getProperty("cold.write.retained.versions", "3"));
+        this.threads = Integer.parseInt(properties.getProperty("analyzer.threads",
+                String.valueOf(Runtime.getRuntime().availableProcessors())));
+        if (threads < 1) {
+            throw new IllegalArgumentException("analyzer.threads should be at least 1 : " + threads);
+        }
+        this.fileTimeoutSeconds = Long.parseLong(properties.getProperty("analyzer.file.timeout.seconds", "0"));
+        this.failurePolicy = FailurePolicy.valueOf(
+                properties.getProperty("analyzer.file.failure.policy", "SKIP").toUpperCase());
+        this.outputFormat = JsonFileSink.Format.valueOf(
+                properties.getProperty("patterns.out.format", "JSON").toUpperCase());
+        this.bundleFile = emptyToNull(properties.getProperty("patterns.bundle.file"));
+        this.elasticsearchBatchSize = Integer.parseInt(properties.getProperty("elasticsearch.batch.size", "1000"));
+        if (!Boolean.parseBoolean(properties.getProperty("analyzer.prefilter", "true"))) {
+            this.preFilter = null;
+        }
+        this.changedFiles = emptyToNull(properties.getProperty("changed.files"));
+        this.gitBaseRev = emptyToNull(properties.getProperty("git.base.rev"));
+        this.gitHeadRev = emptyToNull(properties.getProperty("git.head.rev"));
+        this.deltaFile = emptyToNull(properties.getProperty("patterns.delta.file"));
+        if (deltaFile == null) {
+            //never the output file itself, the delta would replace the patterns of the last full run
+            this.deltaFile = besideOutputFile("-delta.json");
+        }
+        if (Boolean.parseBoolean(properties.getProperty("analyzer.profile", "true"))) {
+            this.profileFile = emptyToNull(properties.getProperty("analyzer.profile.file"));
+            if (profileFile == null) {
+                this.profileFile = besideOutputFile("-profile.json");
+            }
+            this.profile = new AnalysisProfile(Integer.parseInt(properties.getProperty("analyzer.profile.top.files", "20")));
+        }
+        boolean symbolSolver = Boolean.parseBoolean(properties.getProperty("analyzer.symbol.solver", "true"));
+        this.loggerResolver = new LoggerResolver(context, symbolSolver);
+        String cacheFile = properties.getProperty("analysis.cache.file");
+        if (srcRoot != null && cacheFile != null && cacheFile.trim().length() > 0) {
+            //Any setting that changes the extracted statements should be part of the cache settings
+            this.cache = new AnalysisCache(Paths.get(cacheFile.trim()), Paths.get(srcRoot),
+                    context + "|" + appendRegExBoundaries + "|" + indexPattern + "|" + symbolSolver);
+        }
+        if (cache == null && (changedFiles != null || gitBaseRev != null)) {
+            //removed patterns are only deleted if the cached statements show no other file logs them
+            throw new IllegalArgumentException("analysis.cache.file is required with changed.files or git.base.rev");
+        }
+        this.statementFactory = new LogStatementFactory(context, appendRegExBoundaries, indexPattern);
     }
 
-    public void analyze() throws IOException {
-
-        Path path = Paths.get(srcRoot);
-        if (Files.isDirectory(path)) {
+    /**
+     * Analyzes the source tree and streams the statements of every file to the configured output file
+     * and elasticsearch, so the memory used does not grow with the size of the source tree.
+     * When a list of changed files or git revisions are configured only the changed files are analyzed.
+     * Compiled classes configured with classes.root are analyzed after the source tree.
+     * A profile of the run is written to the profile file, if configured.
+     */
+    public void analyze() throws Exception {
+
+        Path path = srcRoot != null ? Paths.get(srcRoot) : null;
+        if (path != null && Files.isDirectory(path) && (changedFiles != null || gitBaseRev != null)) {
+            analyzeChanges();
+        } else if (path == null || Files.isDirectory(path)) {
+            List<LogStatementSink> sinks = openSinks();
             try {
-                System.out.println("Walking src : " + srcRoot);
-                Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
-                    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
-                        if (file.toString().endsWith(".java")) {
-                            try {
-                                analyzeFile(file.toFile());
-                                fileCount++;
-                            } catch (ParseProblemException e) {
-                                LOGGER.warn("Exception while analyzing file {}", file, e);
-                            }
-                        }
-                        return FileVisitResult.CONTINUE;
-                    }
-
-                    @Override
-                    public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
-                        if (excludes != null) {
-                            for (String exclude : excludes) {
-                                if (dir.toString().contains(exclude)) {
-                                    return FileVisitResult.SKIP_SUBTREE;
-                                }
-                            }
-                        }
-                        return FileVisitResult.CONTINUE;
+                if (path != null) {
+                    analyzeSourceTree(path, sinks);
+                }
+                if (classesRoots != null) {
+                    long extractStart = System.nanoTime();
+                    new ClassFileAnalyzer(statementFactory, context).analyze(classesRoots, sinks);
+                    profile.addTime(AnalysisProfile.Phase.EXTRACT, System.nanoTime() - extractStart);
+                }
+                if (failedFileCount.get() == 0) {
+                    for (LogStatementSink sink : sinks) {
+                        sink.complete();
                     }
-                });
-                System.out.println(MessageFormat.format("Analyzed {0} logs in {1} files and {2} mapped to default-context", logCount, fileCount, defaultContextCount));
-            } finally {
-                if (outputFile != null && logStatements != null) {
-                    Gson gson = new GsonBuilder().setPrettyPrinting().create();
-                    gson.toJson(logStatements, new FileWriter(outputFile, false));
+                } else {
+                    System.out.println("Not deleting patterns of earlier runs as some files could not be analyzed");
                 }
+            } finally {
+                long outputStart = System.nanoTime();
+                closeSinks(sinks);
+                profile.addTime(AnalysisProfile.Phase.OUTPUT, System.nanoTime() - outputStart);
             }
         } else {
             LOGGER.error("Specify a valid src directory: {}", srcRoot);
+            return;
+        }
+        if (profileFile != null) {
+            writeProfile(Paths.get(profileFile));
+            System.out.println("Wrote analysis profile to " + profileFile);
         }
     }
 
-    private void analyzeFile(File file) throws IOException {
-        CompilationUnit cu = JavaParser.parse(file);
-        List<MethodCallExpr> methodCallExprList = cu.getChildNodesByType(MethodCallExpr.class);
-
-        Optional<PackageDeclaration> packageDec = cu.getPackageDeclaration();
+    private void writeProfile(Path file) throws IOException {
+        profile.addTime(AnalysisProfile.Phase.RESOLVE, loggerResolver.getLookupNanos());
+        profile.addTime(AnalysisProfile.Phase.REGEX, statementFactory.getRegExNanos());
+        Map<String, Object> counters = new LinkedHashMap<>();
+        counters.put("threads", threads);
+        counters.put("files", fileCount.get());
+        counters.put("skippedFiles", skippedFileCount.get());
+        counters.put("failedFiles", failedFileCount.get());
+        counters.put("cachedFiles", cache != null ? cache.getHits() : 0);
+        counters.put("logs", logCount.get());
+        counters.put("defaultContextLogs", defaultContextCount.get());
+        counters.put("unresolvedMessages", unresolvedMessageCount.get());
+        counters.put("invalidRegExes", statementFactory.getInvalidRegExCount());
+        counters.put("symbolSolverResolvedLoggers", loggerResolver.getResolvedCount());
+        counters.put("symbolSolverLookups", loggerResolver.getLookupCount());
+        profile.write(file, counters);
+    }
 
-        //Get all field declarations in this file
-        HashMultimap<String, String> classToFieldsMap = null;
+    private void analyzeSourceTree(Path path, List<LogStatementSink> sinks) throws IOException {
+        System.out.println("Walking src : " + srcRoot);
+        long walkStart = System.nanoTime();
+        List<Path> files = listSourceFiles(path);
+        if (cache != null) {
+            cache.load();
+        }
         if (context != LogContext.FILE) {
-            classToFieldsMap = getFieldsInClass(cu);
-        }
-
-        //loop through all method calls in this file
-        for (MethodCallExpr methodCallExpr : methodCallExprList) {
-            String methodName = methodCallExpr.getName().getIdentifier();
-            if (LOG_METHODS.contains(methodName)) {
-
-                int argCount = methodCallExpr.getArguments().size();
-                if (argCount > 0) {
-                    String message = null;
-                    List<String> args = null;
-                    Expression firstArg = methodCallExpr.getArguments().get(0);
-                    if (firstArg instanceof StringLiteralExpr) {
-                        message = ((StringLiteralExpr) firstArg).asString();
-                        args = getArgs(methodCallExpr);
-                    } else if (firstArg instanceof BinaryExpr) {
-                        StringBuilder messageBuilder = new StringBuilder();
-                        args = new LinkedList<>();
-                        processBinaryArgs((BinaryExpr) firstArg, messageBuilder, args);
-                        message = messageBuilder.toString();
-                    } else {
-                        LOGGER.warn("Cannot resolve logger statement {} in file {}", methodCallExpr, file);
-                    }
+            loggerResolver.addSourceRoots(files);
+        }
+        profile.addTime(AnalysisProfile.Phase.WALK, System.nanoTime() - walkStart);
+        analyzeFiles(files, sinks);
+        if (cache != null) {
+            cache.save();
+            System.out.println(MessageFormat.format("Reused {0} files from cache and parsed {1}",
+                    cache.getHits(), cache.getMisses()));
+        }
+        System.out.println(MessageFormat.format("Analyzed {0} logs in {1} files and {2} mapped to default-context",
+                logCount.get(), fileCount.get(), defaultContextCount.get()));
+        if (loggerResolver.getResolvedCount() > 0) {
+            System.out.println(MessageFormat.format("Resolved {0} loggers of other classes with {1} symbol lookups",
+                    loggerResolver.getResolvedCount(), loggerResolver.getLookupCount()));
+        }
+        if (skippedFileCount.get() > 0) {
+            //Estimate the time saved from the average parse time per byte of the parsed files
+            long parsedBytes = profile.getParsedBytes();
+            long savedMillis = parsedBytes == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(
+                    profile.getTime(AnalysisProfile.Phase.PARSE) * skippedBytes.get() / parsedBytes);
+            System.out.println(MessageFormat.format("Skipped parsing {0} files without log calls, saving about {1} ms",
+                    skippedFileCount.get(), savedMillis));
+        }
+        if (failedFileCount.get() > 0) {
+            System.out.println(MessageFormat.format("Skipped {0} files due to errors", failedFileCount.get()));
+        }
+    }
 
-                    if (message != null) {
-
-                        LogStatement logStatement = new LogStatement();
-                        logStatement.setIndexPattern(indexPattern);
-                        String logContext;
-                        if (context != LogContext.FILE) {
-                            logContext = getLogDeclarationClass(methodCallExpr, classToFieldsMap, file);
-                            if (logContext != null && !DEFAULT_CONTEXT_NAME.equals(logContext)) {
-                                if (context == LogContext.FQN && packageDec.isPresent()) {
-                                    logContext = packageDec.get().getNameAsString() + "." + logContext;
-                                }
-                            }
-                        } else {
-                            logContext = file.getName();
-                        }
+    //Java files of the source tree, in walk order, without the excluded directories
+    private List<Path> listSourceFiles(Path path) throws IOException {
+        List<Path> files = new ArrayList<>();
+        Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                if (file.toString().endsWith(".java")) {
+                    files.add(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
 
-                        logStatement.setContext(logContext != null ? logContext : DEFAULT_CONTEXT_NAME);
-                        logStatement.setLevel(methodName);
-                        try {
-                            logStatement.setMessageRegEx(convertToRegEx(message));
-                            if (args != null) {
-                                logStatement.setArgs(args);
-                                List<String> fields = new ArrayList<>();
-                                for (String arg : args) {
-                                    fields.add(getFieldName(arg, extractClassName(logStatement.getContext())));
-                                }
-                                logStatement.setFields(fields);
-                            }
-
-                        } catch (PatternSyntaxException ex) {
-                            LOGGER.warn("Exception while converting regex {} in file {}. Message {}", message, file, ex.getMessage());
-                        }
-                        logCount++;
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                return isExcluded(dir) ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+            }
+        });
+        return files;
+    }
+
+    /**
+     * Analyzes the files on a pool of {@code threads} workers. At most a few files per worker are in
+     * flight at any time and results are merged in walk order, so the output is the same as a
+     * single threaded run irrespective of the worker count.
+     */
+    private void analyzeFiles(List<Path> files, List<LogStatementSink> sinks) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "analyzer-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        Deque<PendingFile> inFlight = new ArrayDeque<>();
+        Iterator<Path> iterator = files.iterator();
+        try {
+            while (iterator.hasNext() || !inFlight.isEmpty()) {
+                while (iterator.hasNext() && inFlight.size() < threads * 4) {
+                    PendingFile pending = new PendingFile(iterator.next());
+                    pending.result = executor.submit(() -> {
+                        pending.startNanos = System.nanoTime();
+                        pending.started = true;
+                        return analyzeSource(pending.file);
+                    });
+                    inFlight.add(pending);
+                }
+                PendingFile pending = inFlight.poll();
+                List<LogStatement> statements = awaitFile(pending);
+                if (statements != null) {
+                    fileCount.incrementAndGet();
+                    for (LogStatement logStatement : statements) {
+                        logCount.incrementAndGet();
                         if (DEFAULT_CONTEXT_NAME.equals(logStatement.getContext())) {
-                            defaultContextCount++;
+                            defaultContextCount.incrementAndGet();
                         }
-
-                        String messageId = String.valueOf((logStatement.getContext() + "-" + logStatement.getMessageRegEx()).hashCode());
-                        logStatement.setMessageId(messageId);
-                        Optional<MethodDeclaration> method = methodCallExpr.getAncestorOfType(MethodDeclaration.class);
-                        method.ifPresent(methodDeclaration -> logStatement.setMethod(methodDeclaration.getNameAsString()));
-                        logStatements.add(logStatement);
                     }
+                    long outputStart = System.nanoTime();
+                    for (LogStatementSink sink : sinks) {
+                        sink.write(statements);
+                    }
+                    profile.addTime(AnalysisProfile.Phase.OUTPUT, System.nanoTime() - outputStart);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
 
-                } else {
-                    LOGGER.debug("logger statement with no args: {} in file {}", methodCallExpr, file);
+    /**
+     * Returns null if the file failed and the failure policy allows to continue with the next file.
+     * The timeout of a file runs from the moment a worker starts analyzing it, not from the moment
+     * it is awaited. A file that timed out is abandoned rather than stopped, as the parser does not
+     * check for interruption: its worker stays busy until the parse ends, and its statements are dropped.
+     */
+    private List<LogStatement> awaitFile(PendingFile pending) throws IOException {
+        Throwable failure;
+        try {
+            if (fileTimeoutSeconds > 0) {
+                return awaitWithTimeout(pending, TimeUnit.SECONDS.toNanos(fileTimeoutSeconds));
+            } else {
+                return pending.result.get();
+            }
+        } catch (ExecutionException e) {
+            failure = e.getCause();
+        } catch (TimeoutException e) {
+            pending.result.cancel(true);
+            failure = new TimeoutException("Timed out after " + fileTimeoutSeconds + " seconds");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while analyzing " + pending.file);
+        }
+        failedFileCount.incrementAndGet();
+        if (failurePolicy == FailurePolicy.FAIL) {
+            throw new IOException("Exception while analyzing file " + pending.file, failure);
+        }
+        LOGGER.warn("Exception while analyzing file {}", pending.file, failure);
+        return null;
+    }
+
+    private static List<LogStatement> awaitWithTimeout(PendingFile pending, long timeoutNanos)
+            throws ExecutionException, InterruptedException, TimeoutException {
+        while (true) {
+            //a file waiting for a worker is not timed yet, check again once it could have timed out
+            long remainingNanos = pending.started ?
+                    pending.startNanos + timeoutNanos - System.nanoTime() : timeoutNanos;
+            try {
+                return pending.result.get(Math.max(0, remainingNanos), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                if (pending.started && pending.startNanos + timeoutNanos - System.nanoTime() <= 0) {
+                    throw e;
                 }
             }
         }
     }
 
-    private String extractClassName(String logContext) {
+    /**
+     * Analyzes only the changed files and writes the patterns added and removed in each of them to the
+     * delta file and applies them to elasticsearch. With git revisions the removed patterns are found by
+     * analyzing the base revision of the file. With a list of files they are taken from the analysis cache.
+     * The analysis cache is not updated in this mode. Patterns removed from the changed files are only
+     * deleted from elasticsearch if no other file logs them, see {@link #keepLoggedIds}.
+     */
+    private void analyzeChanges() throws Exception {
+        cache.load();
+        List<Path> files = listSourceFiles(Paths.get(srcRoot));
+        if (context != LogContext.FILE) {
+            //loggers of other classes resolve to the same contexts, and ids, as in a full run
+            loggerResolver.addSourceRoots(files);
+        }
+        List<FileDelta> deltas = gitBaseRev != null ? diffGitRevisions() : diffChangedFiles();
+        List<LogStatement> added = new ArrayList<>();
+        Set<String> removedIds = new LinkedHashSet<>();
+        for (FileDelta delta : deltas) {
+            added.addAll(delta.getAdded());
+            delta.getRemoved().forEach(logStatement -> removedIds.add(logStatement.getMessageId()));
+        }
+        //A pattern moved from one file to another is not removed
+        added.forEach(logStatement -> removedIds.remove(logStatement.getMessageId()));
+        if (!removedIds.isEmpty()) {
+            keepLoggedIds(removedIds, files, deltas);
+        }
+        System.out.println(MessageFormat.format("Found {0} added and {1} removed patterns in {2} changed files",
+                added.size(), removedIds.size(), deltas.size()));
+
+        if (deltaFile != null) {
+            try (Writer writer = Files.newBufferedWriter(Paths.get(deltaFile), StandardCharsets.UTF_8)) {
+                new GsonBuilder().setPrettyPrinting().create().toJson(deltas, writer);
+            }
+        }
+        if (elasticsearchUrl != null && !elasticsearchUrl.isEmpty()) {
+            System.out.println("Applying changes to elasticsearch @" + elasticsearchUrl);
+            ElasticOutput elasticOutput = new ElasticOutput(elasticsearchUrl, elasticsearchSettings);
+            try {
+                elasticOutput.applyDelta(added, removedIds, indexPattern);
+            } finally {
+                elasticOutput.cleanup();
+            }
+        }
+    }
+
+    /**
+     * Keeps the removed ids that files other than the changed ones still log, like the same message logged
+     * in the same context from another file. The statements of the other files are taken from the analysis
+     * cache without parsing them. No id is removed if any of them is not in the cache, like a file added
+     * since the cache was built that is not listed as changed.
+     */
+    private void keepLoggedIds(Set<String> removedIds, List<Path> files, List<FileDelta> deltas) {
+        Path root = Paths.get(srcRoot);
+        Set<String> changed = new HashSet<>();
+        deltas.forEach(delta -> changed.add(delta.getFile()));
+        Set<String> loggedIds = new HashSet<>();
+        int uncachedFiles = 0;
+        for (Path file : files) {
+            String key = root.relativize(file).toString();
+            if (changed.contains(key)) {
+                continue;
+            }
+            List<LogStatement> statements = cache.getPrevious(key);
+            if (statements == null) {
+                uncachedFiles++;
+            } else {
+                statements.forEach(logStatement -> loggedIds.add(logStatement.getMessageId()));
+            }
+        }
+        if (uncachedFiles > 0) {
+            System.out.println(MessageFormat.format("Not removing patterns as {0} unchanged files are not in the " +
+                    "analysis cache. Run a full analysis to rebuild it", uncachedFiles));
+            removedIds.clear();
+            return;
+        }
+        int removed = removedIds.size();
+        removedIds.removeAll(loggedIds);
+        if (removedIds.size() < removed) {
+            System.out.println(MessageFormat.format("Keeping {0} removed patterns still logged by unchanged files",
+                    removed - removedIds.size()));
+        }
+    }
+
+    private List<FileDelta> diffGitRevisions() throws IOException {
+        GitChanges git = new GitChanges(new File(srcRoot));
+        List<FileDelta> deltas = new ArrayList<>();
+        for (GitChanges.Change change : git.diff(gitBaseRev, gitHeadRev)) {
+            String file = change.getPath();
+            if (!file.endsWith(".java") || isExcluded(Paths.get(srcRoot, file))) {
+                continue;
+            }
+            List<LogStatement> before = Collections.emptyList(), after = Collections.emptyList();
+            if (!change.isAdded()) {
+                before = analyzeContent(file, git.show(gitBaseRev, file));
+            }
+            if (!change.isDeleted()) {
+                after = analyzeContent(file, gitHeadRev != null ? git.show(gitHeadRev, file) :
+                        Files.readAllBytes(Paths.get(srcRoot, file)));
+            }
+            if (before != null && after != null) {
+                deltas.add(diff(file, before, after));
+            }
+        }
+        return deltas;
+    }
 
-        String clazz = logContext;
-        if (context == LogContext.FQN) {
-            int dotIndex = logContext.lastIndexOf('.');
-            if (dotIndex != -1) {
-                clazz = logContext.substring(dotIndex + 1);
+    private List<FileDelta> diffChangedFiles() throws IOException {
+        Path root = Paths.get(srcRoot);
+        List<FileDelta> deltas = new ArrayList<>();
+        for (String line : Files.readAllLines(Paths.get(changedFiles), StandardCharsets.UTF_8)) {
+            if (line.trim().isEmpty() || !line.trim().endsWith(".java")) {
+                continue;
+            }
+            Path path = root.resolve(line.trim());
+            if (isExcluded(path)) {
+                continue;
+            }
+            String file = root.relativize(path).toString();
+            List<LogStatement> before = cache.getPrevious(file);
+            List<LogStatement> after = Files.exists(path) ?
+                    analyzeContent(file, Files.readAllBytes(path)) : Collections.emptyList();
+            if (after != null) {
+                deltas.add(diff(file, before != null ? before : Collections.emptyList(), after));
             }
-        } else if (context == LogContext.FILE) {
-            clazz = logContext.substring(0,logContext.lastIndexOf("."));
         }
-        return clazz;
+        return deltas;
     }
 
-    private String getFieldName(String argName, String context) {
-        String fieldName = context + "_" + argName.replaceAll("\\(\\)", "");
-        StringBuilder bldr = new StringBuilder();
-        for (int i = 0; i < fieldName.length(); i++) {
-            char c = fieldName.charAt(i);
-            if (Character.isLetterOrDigit(c) ||
-                    c == '_') {
-                bldr.append(c);
-            } else if (bldr.charAt(bldr.length() - 1) != '_') {
-                bldr.append('_');
+    //Returns null if the content cannot be analyzed and the failure policy allows to continue
+    private List<LogStatement> analyzeContent(String file, byte[] content) throws IOException {
+        try {
+            if (preFilter != null && !preFilter.mayContainLogCall(ByteBuffer.wrap(content))) {
+                return Collections.emptyList();
+            }
+            return analyzeFile(new File(srcRoot, file), content);
+        } catch (RuntimeException e) {
+            if (failurePolicy == FailurePolicy.FAIL) {
+                throw new IOException("Exception while analyzing file " + file, e);
+            }
+            LOGGER.warn("Exception while analyzing file {}", file, e);
+            return null;
+        }
+    }
+
+    private FileDelta diff(String file, List<LogStatement> before, List<LogStatement> after) {
+        Map<String, LogStatement> beforeById = new LinkedHashMap<>(), afterById = new LinkedHashMap<>();
+        before.forEach(logStatement -> beforeById.put(logStatement.getMessageId(), logStatement));
+        after.forEach(logStatement -> afterById.put(logStatement.getMessageId(), logStatement));
+        List<LogStatement> added = new ArrayList<>(), removed = new ArrayList<>();
+        afterById.forEach((id, logStatement) -> {
+            if (!beforeById.containsKey(id)) {
+                added.add(logStatement);
+            }
+        });
+        beforeById.forEach((id, logStatement) -> {
+            if (!afterById.containsKey(id)) {
+                removed.add(logStatement);
+            }
+        });
+        return new FileDelta(file, added, removed);
+    }
+
+    private boolean isExcluded(Path path) {
+        if (excludes != null) {
+            for (String exclude : excludes) {
+                if (path.toString().contains(exclude)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private String relativize(File file) {
+        Path root = Paths.get(srcRoot).toAbsolutePath(), path = file.toPath().toAbsolutePath();
+        return path.startsWith(root) ? root.relativize(path).toString() : file.getPath();
+    }
+
+    //File next to the output file, patterns.json -> patterns<suffix>, null without output file
+    private String besideOutputFile(String suffix) {
+        if (outputFile == null || outputFile.trim().isEmpty()) {
+            return null;
+        }
+        Path output = Paths.get(outputFile);
+        String name = output.getFileName().toString();
+        name = (name.lastIndexOf('.') > 0 ? name.substring(0, name.lastIndexOf('.')) : name) + suffix;
+        return output.resolveSibling(name).toString();
+    }
+
+    private static String emptyToNull(String value) {
+        return value == null || value.trim().isEmpty() ? null : value.trim();
+    }
+
+    private List<LogStatement> analyzeSource(Path file) throws IOException {
+        long readStart = System.nanoTime();
+        byte[] content = Files.readAllBytes(file);
+        boolean skip = preFilter != null && !preFilter.mayContainLogCall(ByteBuffer.wrap(content));
+        profile.addTime(AnalysisProfile.Phase.READ, System.nanoTime() - readStart);
+        if (skip) {
+            skippedFileCount.incrementAndGet();
+            skippedBytes.addAndGet(content.length);
+            if (cache != null) {
+                //cached without statements, so changes mode knows the file does not log any removed pattern
+                cache.put(Paths.get(srcRoot).relativize(file).toString(), AnalysisCache.hash(content),
+                        Collections.emptyList(), Collections.emptySet(), false);
+            }
+            return Collections.emptyList();
+        }
+        if (cache == null) {
+            return analyzeFile(file.toFile(), content);
+        }
+        String key = Paths.get(srcRoot).relativize(file).toString();
+        String hash = AnalysisCache.hash(content);
+        List<LogStatement> statements = cache.get(key, hash);
+        if (statements == null) {
+            LoggerResolver.Dependencies dependencies = new LoggerResolver.Dependencies();
+            statements = analyzeFile(file.toFile(), content, dependencies);
+            //a logger of a class that is not found may be once another file changes, so the statements are not reused
+            Set<Path> dependencyFiles = new HashSet<>(dependencies.getFiles());
+            dependencyFiles.remove(file.toAbsolutePath());
+            cache.put(key, hash, statements, dependencyFiles, dependencies.isUnresolved());
+        }
+        return statements;
+    }
+
+    //package-private for benchmarks
+    List<LogStatement> analyzeFile(File file, byte[] content) throws IOException {
+        return analyzeFile(file, content, new LoggerResolver.Dependencies());
+    }
+
+    private List<LogStatement> analyzeFile(File file, byte[] content, LoggerResolver.Dependencies dependencies)
+            throws IOException {
+        List<LogStatement> fileStatements = new ArrayList<>();
+        long parseStart = System.nanoTime();
+        ParseResult<CompilationUnit> result = PARSER.get().parse(ParseStart.COMPILATION_UNIT,
+                Providers.provider(new ByteArrayInputStream(content), Providers.UTF8));
+        long parseNanos = System.nanoTime() - parseStart;
+        if (!result.isSuccessful() || !result.getResult().isPresent()) {
+            throw new ParseProblemException(result.getProblems());
+        }
+        CompilationUnit cu = result.getResult().get();
+        String packageName = cu.getPackageDeclaration().map(PackageDeclaration::getNameAsString).orElse(null);
+        if (context != LogContext.FILE) {
+            loggerResolver.addSourceRoot(file, packageName);
+        }
+        long extractStart = System.nanoTime();
+        new LogCallVisitor(file, packageName, fileStatements, dependencies).visit(cu);
+        String path = srcRoot != null ? relativize(file) : file.getPath();
+        profile.addFile(path, new File(path).getParent(), content.length, parseNanos,
+                System.nanoTime() - extractStart, fileStatements.size());
+        return fileStatements;
+    }
+
+    private void processLogCall(MethodCallExpr methodCallExpr, LogCallVisitor visitor) {
+        String methodName = methodCallExpr.getName().getIdentifier();
+        if (LOG_METHODS.contains(methodName)) {
+            File file = visitor.file;
+            int argCount = methodCallExpr.getArguments().size();
+            if (argCount > 0) {
+                String message = null;
+                List<String> args = null;
+                Expression firstArg = methodCallExpr.getArguments().get(0);
+                if (firstArg instanceof StringLiteralExpr) {
+                    message = ((StringLiteralExpr) firstArg).asString();
+                    args = getArgs(methodCallExpr);
+                } else if (firstArg instanceof BinaryExpr) {
+                    StringBuilder messageBuilder = new StringBuilder();
+                    args = new LinkedList<>();
+                    processBinaryArgs((BinaryExpr) firstArg, messageBuilder, args);
+                    message = messageBuilder.toString();
+                } else {
+                    unresolvedMessageCount.incrementAndGet();
+                    LOGGER.warn("Cannot resolve logger statement {} in file {}", methodCallExpr, file);
+                }
+
+                if (message != null) {
+
+                    String logContext;
+                    if (context != LogContext.FILE) {
+                        logContext = getLogDeclarationClass(methodCallExpr, visitor);
+                    } else {
+                        logContext = file.getName();
+                    }
+
+                    visitor.statements.add(statementFactory.create(logContext, methodName, visitor.methods.peek(), message, args, file));
+                }
+
+            } else {
+                LOGGER.debug("logger statement with no args: {} in file {}", methodCallExpr, file);
             }
         }
-        return bldr.toString();
     }
 
     private void processBinaryArgs(BinaryExpr expr, StringBuilder message, List<String> args) {
@@ -274,20 +702,6 @@ public class JavaSrcAnalyzer {
         }
     }
 
-    private HashMultimap<String, String> getFieldsInClass(CompilationUnit cu) {
-        HashMultimap<String, String> classToFieldsMap = HashMultimap.create();
-        List<ClassOrInterfaceDeclaration> classes = cu.getChildNodesByType(ClassOrInterfaceDeclaration.class);
-        for (ClassOrInterfaceDeclaration clazz : classes) {
-            List<FieldDeclaration> declarations = clazz.getFields();
-            for (FieldDeclaration declaration : declarations) {
-                for (VariableDeclarator d : declaration.getVariables()) {
-                    classToFieldsMap.put(clazz.getNameAsString(), d.getNameAsString());
-                }
-            }
-        }
-        return classToFieldsMap;
-    }
-
     private List<String> getArgs(MethodCallExpr methodCallExpr) {
         NodeList<Expression> argumentList = methodCallExpr.getArguments();
         List<String> args = new LinkedList<>();
@@ -299,53 +713,38 @@ public class JavaSrcAnalyzer {
         return args;
     }
 
-    //Creates regEx pattern from message with named groups
-    private String convertToRegEx(String message) {
-        //Escape any regex special characters in the log message
-        String cleanedUpMessage = REGEX_SPECIAL_CHARS_PATTERN.matcher(message).replaceAll("\\\\$0");
-        int argCount = 1;
-        while (cleanedUpMessage.contains(FORMAT_ANCHOR)) {
-            Matcher matcher = LOG_FORMAT_ANCHOR_PATTERN.matcher(cleanedUpMessage);
-            cleanedUpMessage = matcher.replaceFirst("(?<arg" + argCount + ">[\\\\S]+)");
-            argCount++;
-        }
-        if (appendRegExBoundaries) {
-            cleanedUpMessage = "^" + cleanedUpMessage + "$";
-        }
-        //Compile to make sure we have a valid pattern.
-        return Pattern.compile(cleanedUpMessage).pattern();
-    }
-
-
-    private String getLogDeclarationClass(MethodCallExpr methodCallExpr, SetMultimap<String, String> classToFieldsMap, File file) {
-        Optional<Expression> scope = methodCallExpr.getScope();
-        String logClass = DEFAULT_CONTEXT_NAME;
-        NameExpr nameExpr;
-        if (scope.isPresent() && scope.get() instanceof NameExpr) {
-            nameExpr = (NameExpr) scope.get();
-        } else { // for other cases like AnotherClass.LOGGER.sever() - maps to default-context
-            LOGGER.warn("Cannot resolve parent class for {} in file {}", methodCallExpr, file);
-            return logClass;
-        }
-
-        String varName = nameExpr.getNameAsString();
-        Optional<ClassOrInterfaceDeclaration> clazz =
-                methodCallExpr.getAncestorOfType(ClassOrInterfaceDeclaration.class);
-        if (clazz.isPresent()) {
-            while (true) {
-                Set<String> fields = classToFieldsMap.get(clazz.get().getNameAsString());
-                if (fields.contains(varName)) {
-                    logClass = clazz.get().getNameAsString();
-                    break;
-                } else {
-                    clazz = clazz.get().getAncestorOfType(ClassOrInterfaceDeclaration.class);
-                    if (!clazz.isPresent()) {
-                        break;
-                    }
+    /**
+     * Loggers that are fields of the enclosing classes are resolved from the class stack, other
+     * loggers (fields of other classes, inherited fields) with the symbol solver.
+     */
+    private String getLogDeclarationClass(MethodCallExpr methodCallExpr, LogCallVisitor visitor) {
+        Expression scope = methodCallExpr.getScope().orElse(null);
+        String varName = null;
+        if (scope instanceof NameExpr) {
+            varName = ((NameExpr) scope).getNameAsString();
+        } else if (scope instanceof FieldAccessExpr && ((FieldAccessExpr) scope).getScope() instanceof ThisExpr) {
+            varName = ((FieldAccessExpr) scope).getNameAsString();
+        }
+
+        //innermost class first
+        if (varName != null) {
+            for (ClassScope clazz : visitor.classes) {
+                if (clazz.fields.containsKey(varName)) {
+                    return loggerResolver.getFieldContext(visitor.packageName, clazz.name, varName, clazz.fields.get(varName),
+                            visitor.dependencies);
                 }
             }
         }
-        return logClass;
+        ClassScope enclosing = visitor.classes.peek();
+        String logContext = enclosing != null ? loggerResolver.resolve(scope, visitor.packageName, enclosing.name,
+                visitor.dependencies) : null;
+        if (logContext == null) {
+            if (!(scope instanceof NameExpr)) {
+                LOGGER.warn("Cannot resolve parent class for {} in file {}", methodCallExpr, visitor.file);
+            }
+            return DEFAULT_CONTEXT_NAME;
+        }
+        return logContext;
     }
 
     public static void main(String args[]) throws Exception {
@@ -363,7 +762,6 @@ public class JavaSrcAnalyzer {
             config.load(new FileInputStream(configPath));
             JavaSrcAnalyzer srcAnalyzer = new JavaSrcAnalyzer(config);
             srcAnalyzer.analyze();
-            srcAnalyzer.writeToElasticsearch();
 
         } catch (Exception e) {
             LOGGER.error("exception while analyzing ", e);
@@ -371,22 +769,49 @@ public class JavaSrcAnalyzer {
         }
     }
 
-    private void writeToElasticsearch() throws Exception {
-        if (elasticsearchUrl != null && !elasticsearchUrl.isEmpty()) {
-            if (this.logStatements != null) {
-                int patternCount = this.logStatements.size();
-                LOGGER.info("Writing {} patterns to ES", patternCount);
-                System.out.println("Writing " + patternCount + " patterns to elasticsearch @" + elasticsearchUrl);
-                ElasticOutput elasticOutput = new ElasticOutput(elasticsearchUrl);
-                if (coldWrite) {
-                    elasticOutput.deletePatternsIndex();
+    private List<LogStatementSink> openSinks() throws Exception {
+        List<LogStatementSink> sinks = new ArrayList<>();
+        try {
+            if (outputFile != null) {
+                sinks.add(new JsonFileSink(Paths.get(outputFile), outputFormat));
+            }
+            if (bundleFile != null) {
+                sinks.add(new PatternBundleSink(Paths.get(bundleFile)));
+            }
+            if (elasticsearchUrl != null && !elasticsearchUrl.isEmpty()) {
+                System.out.println("Writing patterns to elasticsearch @" + elasticsearchUrl);
+                ElasticOutput elasticOutput = new ElasticOutput(elasticsearchUrl, elasticsearchSettings);
+                if (coldWrite && coldWriteVersioned) {
+                    elasticOutput.initVersion(retainedVersions);
+                } else if (!coldWrite) {
+                    elasticOutput.init(indexPattern);
+                }
+                //a cold write without versions deletes the index once the analysis completed
+                sinks.add(new ElasticSink(elasticOutput, elasticsearchBatchSize, coldWrite && !coldWriteVersioned));
+            }
+        } catch (Exception e) {
+            closeSinks(sinks);
+            throw e;
+        }
+        return sinks;
+    }
+
+    private void closeSinks(List<LogStatementSink> sinks) throws IOException {
+        IOException failure = null;
+        for (LogStatementSink sink : sinks) {
+            try {
+                sink.close();
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                } else {
+                    failure.addSuppressed(e);
                 }
-                elasticOutput.init();
-                elasticOutput.writeDocuments(this.logStatements);
-                elasticOutput.cleanup();
-                System.out.println("Done...");
             }
         }
+        if (failure != null) {
+            throw failure;
+        }
     }
 
     private static Options options() {
@@ -398,4 +823,86 @@ public class JavaSrcAnalyzer {
     enum LogContext {
         SIMPLE_NAME, FQN, FILE
     }
+
+    //What to do when a single file cannot be analyzed (parse error, IO error or timeout)
+    enum FailurePolicy {
+        SKIP, FAIL
+    }
+
+    /**
+     * Finds the log calls of a compilation unit in a single pass, keeping track of the enclosing
+     * classes with their fields and the enclosing method on the way down. Children are visited in
+     * source order, so statements are found in the same order as with Node.getChildNodesByType.
+     */
+    private class LogCallVisitor {
+        private final File file;
+        private final String packageName;
+        private final List<LogStatement> statements;
+        private final Deque<ClassScope> classes = new ArrayDeque<>();
+        private final Deque<String> methods = new ArrayDeque<>();
+        private final LoggerResolver.Dependencies dependencies;
+
+        LogCallVisitor(File file, String packageName, List<LogStatement> statements,
+                       LoggerResolver.Dependencies dependencies) {
+            this.file = file;
+            this.packageName = packageName;
+            this.statements = statements;
+            this.dependencies = dependencies;
+        }
+
+        void visit(Node node) {
+            ClassScope classScope = null;
+            String method = null;
+            if (node instanceof ClassOrInterfaceDeclaration) {
+                ClassOrInterfaceDeclaration clazz = (ClassOrInterfaceDeclaration) node;
+                Map<String, Expression> fields = new HashMap<>();
+                for (FieldDeclaration declaration : clazz.getFields()) {
+                    for (VariableDeclarator d : declaration.getVariables()) {
+                        fields.put(d.getNameAsString(), d.getInitializer().orElse(null));
+                    }
+                }
+                //nested classes are named with their outer classes
+                String name = classes.isEmpty() ? clazz.getNameAsString() : classes.peek().name + "." + clazz.getNameAsString();
+                classScope = new ClassScope(name, fields);
+                classes.push(classScope);
+            } else if (node instanceof MethodDeclaration) {
+                method = ((MethodDeclaration) node).getNameAsString();
+                methods.push(method);
+            }
+            for (Node child : node.getChildNodes()) {
+                if (child instanceof MethodCallExpr) {
+                    processLogCall((MethodCallExpr) child, this);
+                }
+                visit(child);
+            }
+            if (classScope != null) {
+                classes.pop();
+            } else if (method != null) {
+                methods.pop();
+            }
+        }
+    }
+
+    private static class ClassScope {
+        private final String name;
+        //field name -> initializer
+        private final Map<String, Expression> fields;
+
+        ClassScope(String name, Map<String, Expression> fields) {
+            this.name = name;
+            this.fields = fields;
+        }
+    }
+
+    private static class PendingFile {
+        private final Path file;
+        private Future<List<LogStatement>> result;
+        //set by the worker, startNanos is written before started
+        private volatile long startNanos;
+        private volatile boolean started;
+
+        PendingFile(Path file) {
+            this.file = file;
+        }
+    }
 }
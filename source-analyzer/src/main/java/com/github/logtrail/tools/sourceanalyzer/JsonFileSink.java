@@ -0,0 +1,62 @@
+package com.github.logtrail.tools.sourceanalyzer;
+
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Streams log statements to a file either as a pretty printed JSON array or as
+ * newline delimited JSON (one statement per line).
+ */
+public class JsonFileSink implements LogStatementSink {
+    private final Gson gson = new Gson();
+    private final Writer writer;
+    private final JsonWriter jsonWriter;
+    private final Format format;
+
+    public JsonFileSink(Path file, Format format) throws IOException {
+        this.format = format;
+        this.writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8);
+        if (format == Format.JSON) {
+            jsonWriter = new JsonWriter(writer);
+            jsonWriter.setIndent("  ");
+            jsonWriter.beginArray();
+        } else {
+            jsonWriter = null;
+        }
+    }
+
+    @Override
+    public void write(List<LogStatement> logStatements) throws IOException {
+        for (LogStatement logStatement : logStatements) {
+            if (format == Format.JSON) {
+                gson.toJson(logStatement, LogStatement.class, jsonWriter);
+            } else {
+                gson.toJson(logStatement, LogStatement.class, writer);
+                writer.write('\n');
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (jsonWriter != null) {
+                jsonWriter.endArray();
+                jsonWriter.flush();
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    public enum Format {
+        JSON, NDJSON
+    }
+}
@@ -0,0 +1,66 @@
+package com.github.logtrail.tools.sourceanalyzer;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+
+/**
+ * Lexical scan of the raw bytes of a source file to find out if the file can contain a call to one of
+ * the log methods. Looks for a method name that is not part of a longer identifier and is followed by
+ * optional whitespace and '('. Files without such a token cannot contain a log call and need not be parsed.
+ * The check is conservative: names inside comments or string literals also count as a possible call.
+ * Calls written with a comment between the name and '(' or with unicode escapes in the name are not detected.
+ */
+class LogCallPreFilter {
+    private final byte[][] tokens;
+
+    LogCallPreFilter(Set<String> methods) {
+        tokens = new byte[methods.size()][];
+        int i = 0;
+        for (String method : methods) {
+            tokens[i++] = method.getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    boolean mayContainLogCall(ByteBuffer content) {
+        int limit = content.limit();
+        for (int i = content.position(); i < limit; i++) {
+            byte b = content.get(i);
+            if (b >= 'a' && b <= 'z' && (i == 0 || !isIdentifierPart(content.get(i - 1)))) {
+                for (byte[] token : tokens) {
+                    if (token[0] == b && matchesCall(content, i, token)) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean matchesCall(ByteBuffer content, int start, byte[] token) {
+        int limit = content.limit();
+        if (start + token.length > limit) {
+            return false;
+        }
+        for (int j = 1; j < token.length; j++) {
+            if (content.get(start + j) != token[j]) {
+                return false;
+            }
+        }
+        for (int i = start + token.length; i < limit; i++) {
+            byte b = content.get(i);
+            if (b == '(') {
+                return true;
+            } else if (b != ' ' && b != '\t' && b != '\n' && b != '\r' && b != '\f') {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    //Bytes of multi-byte UTF-8 sequences are treated as identifier chars
+    private static boolean isIdentifierPart(byte b) {
+        return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9')
+                || b == '_' || b == '$' || b < 0;
+    }
+}
@@ -9,6 +9,7 @@ import java.util.regex.Pattern;
 */
 public class LogStatement {
     private String messageRegEx;
+    private List<String> segments; // literal parts of the message around the {} placeholders
     private String context;
     private String level;
     private String method;
@@ -28,6 +29,14 @@ public class LogStatement {
         this.messageRegEx = messageRegEx;
     }
 
+    public List<String> getSegments() {
+        return segments;
+    }
+
+    public void setSegments(List<String> segments) {
+        this.segments = segments;
+    }
+
     public String getContext() {
         return context;
     }
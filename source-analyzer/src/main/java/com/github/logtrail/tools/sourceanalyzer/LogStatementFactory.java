@@ -0,0 +1,116 @@
+package com.github.logtrail.tools.sourceanalyzer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Builds a log statement from a log message and its arguments: the message regex, the field names
+ * and the message id. Shared by all extractors so they produce the same statement for the same message.
+ */
+class LogStatementFactory {
+    private static final Logger LOGGER = LoggerFactory.getLogger(LogStatementFactory.class);
+    private final JavaSrcAnalyzer.LogContext context;
+    private final boolean appendRegExBoundaries;
+    private final String indexPattern;
+    private final LongAdder regExNanos = new LongAdder(), invalidRegExCount = new LongAdder();
+
+    LogStatementFactory(JavaSrcAnalyzer.LogContext context, boolean appendRegExBoundaries, String indexPattern) {
+        this.context = context;
+        this.appendRegExBoundaries = appendRegExBoundaries;
+        this.indexPattern = indexPattern;
+    }
+
+    /**
+     * @param source file or class the statement was found in, used for logging
+     */
+    LogStatement create(String logContext, String level, String method, String message,
+                        List<String> args, Object source) {
+        LogStatement logStatement = new LogStatement();
+        logStatement.setIndexPattern(indexPattern);
+        logStatement.setContext(logContext);
+        logStatement.setLevel(level);
+        try {
+            long start = System.nanoTime();
+            LogTemplate template = LogTemplate.parse(message);
+            logStatement.setMessageRegEx(convertToRegEx(template));
+            regExNanos.add(System.nanoTime() - start);
+            logStatement.setSegments(template.getSegments());
+            if (args != null) {
+                logStatement.setArgs(args);
+                List<String> fields = new ArrayList<>();
+                for (String arg : args) {
+                    fields.add(getFieldName(arg, extractClassName(logStatement.getContext())));
+                }
+                logStatement.setFields(fields);
+            }
+
+        } catch (PatternSyntaxException ex) {
+            invalidRegExCount.increment();
+            LOGGER.warn("Exception while converting regex {} in file {}. Message {}", message, source, ex.getMessage());
+        }
+
+        String messageId = String.valueOf((logStatement.getContext() + "-" + logStatement.getMessageRegEx()).hashCode());
+        logStatement.setMessageId(messageId);
+        logStatement.setMethod(method);
+        return logStatement;
+    }
+
+    /**
+     * @return time spent converting messages to regexes, summed over all threads
+     */
+    long getRegExNanos() {
+        return regExNanos.sum();
+    }
+
+    /**
+     * @return number of messages that could not be converted to a valid regex
+     */
+    long getInvalidRegExCount() {
+        return invalidRegExCount.sum();
+    }
+
+    private String extractClassName(String logContext) {
+
+        String clazz = logContext;
+        if (context == JavaSrcAnalyzer.LogContext.FQN) {
+            int dotIndex = logContext.lastIndexOf('.');
+            if (dotIndex != -1) {
+                clazz = logContext.substring(dotIndex + 1);
+            }
+        } else if (context == JavaSrcAnalyzer.LogContext.FILE) {
+            clazz = logContext.substring(0,logContext.lastIndexOf("."));
+        }
+        return clazz;
+    }
+
+    private String getFieldName(String argName, String context) {
+        String fieldName = context + "_" + argName.replaceAll("\\(\\)", "");
+        StringBuilder bldr = new StringBuilder();
+        for (int i = 0; i < fieldName.length(); i++) {
+            char c = fieldName.charAt(i);
+            if (Character.isLetterOrDigit(c) ||
+                    c == '_') {
+                bldr.append(c);
+            } else if (bldr.charAt(bldr.length() - 1) != '_') {
+                bldr.append('_');
+            }
+        }
+        return bldr.toString();
+    }
+
+    //Creates regEx pattern from message with named groups
+    String convertToRegEx(String message) {
+        return convertToRegEx(LogTemplate.parse(message));
+    }
+
+    private String convertToRegEx(LogTemplate template) {
+        //Compile to make sure we have a valid pattern.
+        return Pattern.compile(template.toRegEx(appendRegExBoundaries)).pattern();
+    }
+}
@@ -0,0 +1,20 @@
+package com.github.logtrail.tools.sourceanalyzer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Destination for the log statements found by the analyzer. Statements are handed over file by file,
+ * in a deterministic order, as soon as each file is analyzed.
+ */
+public interface LogStatementSink extends Closeable {
+    void write(List<LogStatement> logStatements) throws IOException;
+
+    /**
+     * Called before close when all statements of the source tree were written, so the sink can drop
+     * statements of earlier runs that were not written.
+     */
+    default void complete() throws IOException {
+    }
+}
@@ -0,0 +1,68 @@
+package com.github.logtrail.tools.sourceanalyzer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * SLF4J message template split into literal segments and {} placeholder slots in a single pass.
+ * A template with n placeholders has n + 1 segments: the text before the first placeholder,
+ * between each pair of placeholders and after the last one. Segments can be empty.
+ */
+class LogTemplate {
+    private static final String FORMAT_ANCHOR = "{}";
+    //Zero width non-joiner and zero width space have always been escaped, kept for identical regexes
+    private static final String REGEX_SPECIAL_CHARS = "<([\\^-=$!|])‌​?*+.>";
+    private final List<String> segments;
+
+    private LogTemplate(List<String> segments) {
+        this.segments = segments;
+    }
+
+    static LogTemplate parse(String message) {
+        List<String> segments = new ArrayList<>();
+        int start = 0;
+        for (int index = message.indexOf(FORMAT_ANCHOR); index != -1; index = message.indexOf(FORMAT_ANCHOR, start)) {
+            segments.add(message.substring(start, index));
+            start = index + FORMAT_ANCHOR.length();
+        }
+        segments.add(message.substring(start));
+        return new LogTemplate(Collections.unmodifiableList(segments));
+    }
+
+    List<String> getSegments() {
+        return segments;
+    }
+
+    int getPlaceholderCount() {
+        return segments.size() - 1;
+    }
+
+    /**
+     * @return regex with the regex special chars of the segments escaped and a named group
+     * (?&lt;argN&gt;[\S]+) for placeholder N
+     */
+    String toRegEx(boolean appendBoundaries) {
+        StringBuilder regex = new StringBuilder();
+        if (appendBoundaries) {
+            regex.append('^');
+        }
+        for (int i = 0; i < segments.size(); i++) {
+            if (i > 0) {
+                regex.append("(?<arg").append(i).append(">[\\S]+)");
+            }
+            String segment = segments.get(i);
+            for (int j = 0; j < segment.length(); j++) {
+                char c = segment.charAt(j);
+                if (REGEX_SPECIAL_CHARS.indexOf(c) != -1) {
+                    regex.append('\\');
+                }
+                regex.append(c);
+            }
+        }
+        if (appendBoundaries) {
+            regex.append('$');
+        }
+        return regex.toString();
+    }
+}
@@ -0,0 +1,396 @@
+package com.github.logtrail.tools.sourceanalyzer;
+
+import com.github.javaparser.ast.body.VariableDeclarator;
+import com.github.javaparser.ast.expr.ClassExpr;
+import com.github.javaparser.ast.expr.Expression;
+import com.github.javaparser.ast.expr.FieldAccessExpr;
+import com.github.javaparser.ast.expr.MethodCallExpr;
+import com.github.javaparser.ast.expr.NameExpr;
+import com.github.javaparser.ast.expr.StringLiteralExpr;
+import com.github.javaparser.symbolsolver.javaparsermodel.JavaParserFacade;
+import com.github.javaparser.symbolsolver.javaparsermodel.JavaParserFactory;
+import com.github.javaparser.symbolsolver.javaparsermodel.declarations.JavaParserFieldDeclaration;
+import com.github.javaparser.symbolsolver.model.declarations.FieldDeclaration;
+import com.github.javaparser.symbolsolver.model.declarations.ReferenceTypeDeclaration;
+import com.github.javaparser.symbolsolver.model.declarations.TypeDeclaration;
+import com.github.javaparser.symbolsolver.model.declarations.ValueDeclaration;
+import com.github.javaparser.symbolsolver.model.resolution.SymbolReference;
+import com.github.javaparser.symbolsolver.model.resolution.TypeSolver;
+import com.github.javaparser.symbolsolver.resolution.typesolvers.CombinedTypeSolver;
+import com.github.javaparser.symbolsolver.resolution.typesolvers.JavaParserTypeSolver;
+import com.github.javaparser.symbolsolver.resolution.typesolvers.ReflectionTypeSolver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Resolves loggers that are not fields of the enclosing classes, like loggers of other classes
+ * (LogHolder.LOGGER.info()) and inherited loggers, with the symbol solver. Loggers created with
+ * getLogger("name") resolve to their name and loggers created with getLogger(Other.class) to that class.
+ * Type lookups are expensive, so results are memoized for all files per logger field and per
+ * logger reference in a class. The symbol solver is not thread safe, so lookups are serialized
+ * while memoized results are read without locking.
+ * <p>
+ * A context resolved from another file changes when that file does, so the files of the types
+ * loggers were resolved from are reported as {@link Dependencies} of the calling file.
+ */
+class LoggerResolver {
+    private static final Logger LOGGER = LoggerFactory.getLogger(LoggerResolver.class);
+    private static final Pattern PACKAGE = Pattern.compile("^\\s*package\\s+([\\w.]+)\\s*;", Pattern.MULTILINE);
+    private static final int PACKAGE_SCAN_BYTES = 8192;
+    //Memoized marker for references that cannot be resolved
+    private static final String UNRESOLVED = "";
+    private final JavaSrcAnalyzer.LogContext context;
+    private final boolean symbolSolver;
+    private final CombinedTypeSolver typeSolver = new CombinedTypeSolver(new ReflectionTypeSolver());
+    private final Set<Path> sourceRoots = new HashSet<>();
+    //package.Class|reference -> log context
+    private final Map<String, String> references = new ConcurrentHashMap<>();
+    //package.Class#field -> log context
+    private final Map<String, String> fields = new ConcurrentHashMap<>();
+    //same keys -> files the memoized contexts were resolved from
+    private final Map<String, Dependencies> referenceDependencies = new ConcurrentHashMap<>();
+    private final Map<String, Dependencies> fieldDependencies = new ConcurrentHashMap<>();
+    private final AtomicInteger resolvedCount = new AtomicInteger(), lookupCount = new AtomicInteger();
+    private final LongAdder lookupNanos = new LongAdder();
+    //true while a reference is looked up, so nested type lookups are not timed twice
+    private boolean lookingUp;
+
+    /**
+     * @param symbolSolver false to only resolve loggers from their initializer, without type lookups
+     */
+    LoggerResolver(JavaSrcAnalyzer.LogContext context, boolean symbolSolver) {
+        this.context = context;
+        this.symbolSolver = symbolSolver;
+    }
+
+    /**
+     * Registers the source roots of the files, found from the package of one file per directory,
+     * so types of the whole tree can be resolved irrespective of the order files are analyzed in.
+     */
+    void addSourceRoots(List<Path> files) throws IOException {
+        if (!symbolSolver) {
+            return;
+        }
+        Set<Path> directories = new HashSet<>();
+        for (Path file : files) {
+            if (directories.add(file.toAbsolutePath().getParent())) {
+                addSourceRoot(file.toFile(), readPackage(file));
+            }
+        }
+    }
+
+    /**
+     * Registers the source root of a file from its package, if not known yet.
+     */
+    synchronized void addSourceRoot(File file, String packageName) {
+        if (!symbolSolver) {
+            return;
+        }
+        Path root = file.getAbsoluteFile().toPath().getParent();
+        if (packageName != null) {
+            for (String ignored : packageName.split("\\.")) {
+                root = root != null ? root.getParent() : null;
+            }
+            if (root == null || !root.resolve(packageName.replace('.', File.separatorChar)).equals(
+                    file.getAbsoluteFile().toPath().getParent())) {
+                LOGGER.debug("Package {} does not match the path of {}", packageName, file);
+                return;
+            }
+        }
+        if (root != null && sourceRoots.add(root)) {
+            typeSolver.add(new LenientTypeSolver(new JavaParserTypeSolver(root.toFile())));
+            //references that were not found may be in the new source root
+            references.values().removeIf(UNRESOLVED::equals);
+        }
+    }
+
+    /**
+     * @param initializer  initializer of the logger field, null if not known
+     * @param dependencies files the context was resolved from are added to it
+     * @return the log context of a logger field declared in the given class
+     */
+    String getFieldContext(String packageName, String className, String field, Expression initializer,
+                           Dependencies dependencies) {
+        String key = qualify(packageName, className) + "#" + field;
+        String logContext = fields.get(key);
+        if (logContext == null) {
+            Dependencies found = new Dependencies();
+            logContext = getLoggerContext(packageName, className, initializer, found);
+            //dependencies first, so they are known for any memoized context
+            fieldDependencies.put(key, found);
+            fields.put(key, logContext);
+        }
+        dependencies.addAll(fieldDependencies.get(key));
+        return logContext;
+    }
+
+    /**
+     * @param scope        receiver of the log call
+     * @param packageName  package of the class calling the logger
+     * @param className    name of the class calling the logger, with the names of the outer classes
+     * @param dependencies files the context was resolved from are added to it
+     * @return the log context of the logger, null if it cannot be resolved
+     */
+    String resolve(Expression scope, String packageName, String className, Dependencies dependencies) {
+        if (scope instanceof MethodCallExpr) { //LoggerFactory.getLogger(...).info()
+            return isGetLogger(scope) ? getLoggerContext(packageName, className, scope, dependencies) : null;
+        }
+        if (!symbolSolver || !(scope instanceof NameExpr) && !(scope instanceof FieldAccessExpr)) {
+            return null;
+        }
+        String key = qualify(packageName, className) + "|" + scope;
+        String logContext = references.get(key);
+        if (logContext == null) {
+            synchronized (this) {
+                lookupCount.incrementAndGet();
+                long start = System.nanoTime();
+                lookingUp = true;
+                Dependencies found = new Dependencies();
+                try {
+                    logContext = lookup(scope, found);
+                } finally {
+                    lookingUp = false;
+                    lookupNanos.add(System.nanoTime() - start);
+                }
+                if (logContext != null) {
+                    referenceDependencies.put(key, found);
+                    references.put(key, logContext);
+                }
+                dependencies.addAll(found);
+            }
+        } else {
+            dependencies.addAll(referenceDependencies.get(key));
+        }
+        if (logContext == null || UNRESOLVED.equals(logContext)) {
+            return null;
+        }
+        resolvedCount.incrementAndGet();
+        return logContext;
+    }
+
+    /**
+     * @return number of log calls whose logger was resolved by the symbol solver
+     */
+    int getResolvedCount() {
+        return resolvedCount.get();
+    }
+
+    /**
+     * @return number of symbol solver lookups, the other resolved log calls reused a memoized lookup
+     */
+    int getLookupCount() {
+        return lookupCount.get();
+    }
+
+    /**
+     * @return time spent in symbol solver lookups
+     */
+    long getLookupNanos() {
+        return lookupNanos.sum();
+    }
+
+    //Returns UNRESOLVED if the reference cannot be resolved and null if it is not a field, like a
+    //method parameter, as the result depends on the method and cannot be memoized per class
+    private String lookup(Expression scope, Dependencies dependencies) {
+        try {
+            if (scope instanceof NameExpr) {
+                SymbolReference<? extends ValueDeclaration> symbol = JavaParserFacade.get(typeSolver).solve((NameExpr) scope);
+                if (!symbol.isSolved()) {
+                    //like loggers generated by lombok or inherited from library classes
+                    return UNRESOLVED;
+                }
+                return symbol.getCorrespondingDeclaration().isField() ?
+                        getFieldContext(symbol.getCorrespondingDeclaration().asField(), dependencies) : null;
+            }
+            FieldAccessExpr fieldAccess = (FieldAccessExpr) scope;
+            SymbolReference<TypeDeclaration> type = JavaParserFactory.getContext(fieldAccess, typeSolver)
+                    .solveType(fieldAccess.getScope().toString(), typeSolver);
+            if (type.isSolved() && !type.getCorrespondingDeclaration().isTypeParameter()) {
+                ReferenceTypeDeclaration declaration = type.getCorrespondingDeclaration().asReferenceType();
+                if (declaration.hasField(fieldAccess.getNameAsString())) {
+                    return getFieldContext(declaration.getField(fieldAccess.getNameAsString()), dependencies);
+                }
+            }
+        } catch (RuntimeException e) {
+            //unresolvable types in the hierarchy, unsupported constructs...
+            LOGGER.debug("Cannot resolve logger {}", scope, e);
+        }
+        dependencies.unresolved = true;
+        return UNRESOLVED;
+    }
+
+    private String getFieldContext(FieldDeclaration field, Dependencies dependencies) {
+        TypeDeclaration type = field.declaringType();
+        addFile(type, dependencies);
+        Expression initializer = null;
+        if (field instanceof JavaParserFieldDeclaration) {
+            for (VariableDeclarator variable : ((JavaParserFieldDeclaration) field).getWrappedNode().getVariables()) {
+                if (variable.getNameAsString().equals(field.getName())) {
+                    initializer = variable.getInitializer().orElse(null);
+                }
+            }
+        }
+        return getFieldContext(emptyToNull(type.getPackageName()), type.getClassName(), field.getName(), initializer,
+                dependencies);
+    }
+
+    private String getLoggerContext(String packageName, String className, Expression initializer,
+                                    Dependencies dependencies) {
+        if (isGetLogger(initializer) && ((MethodCallExpr) initializer).getArguments().size() == 1) {
+            Expression name = ((MethodCallExpr) initializer).getArguments().get(0);
+            if (name instanceof StringLiteralExpr) {
+                String loggerName = ((StringLiteralExpr) name).asString();
+                return context == JavaSrcAnalyzer.LogContext.FQN ?
+                        loggerName : loggerName.substring(loggerName.lastIndexOf('.') + 1);
+            } else if (name instanceof ClassExpr) {
+                String typeName = ((ClassExpr) name).getType().toString();
+                if (symbolSolver && !typeName.equals(className) && !typeName.equals(simpleName(className))) {
+                    TypeDeclaration type = solveType(name, typeName);
+                    if (type != null) {
+                        addFile(type, dependencies);
+                        return toContext(emptyToNull(type.getPackageName()), type.getClassName());
+                    }
+                    dependencies.unresolved = true;
+                }
+            }
+        }
+        return toContext(packageName, className);
+    }
+
+    private synchronized TypeDeclaration solveType(Expression node, String typeName) {
+        lookupCount.incrementAndGet();
+        long start = System.nanoTime();
+        try {
+            SymbolReference<TypeDeclaration> type = JavaParserFactory.getContext(node, typeSolver).solveType(typeName, typeSolver);
+            return type.isSolved() ? type.getCorrespondingDeclaration() : null;
+        } catch (RuntimeException e) {
+            LOGGER.debug("Cannot resolve type {}", typeName, e);
+            return null;
+        } finally {
+            if (!lookingUp) {
+                lookupNanos.add(System.nanoTime() - start);
+            }
+        }
+    }
+
+    //Adds the source file of a type found in the source roots, the file is named after the top level class
+    private synchronized void addFile(TypeDeclaration type, Dependencies dependencies) {
+        String packageName = emptyToNull(type.getPackageName());
+        String className = type.getClassName();
+        String fileName = className.substring(0, className.indexOf('.') != -1 ? className.indexOf('.') : className.length()) + ".java";
+        for (Path root : sourceRoots) {
+            Path file = packageName != null ? root.resolve(packageName.replace('.', File.separatorChar)).resolve(fileName) :
+                    root.resolve(fileName);
+            if (Files.isRegularFile(file)) {
+                dependencies.files.add(file);
+                return;
+            }
+        }
+    }
+
+    private String toContext(String packageName, String className) {
+        //Nested classes are named after their own simple name
+        String simpleName = simpleName(className);
+        return context == JavaSrcAnalyzer.LogContext.FQN && packageName != null ? packageName + "." + simpleName : simpleName;
+    }
+
+    private static boolean isGetLogger(Expression expression) {
+        return expression instanceof MethodCallExpr && ((MethodCallExpr) expression).getNameAsString().equals("getLogger");
+    }
+
+    private static String qualify(String packageName, String className) {
+        return packageName != null ? packageName + "." + className : className;
+    }
+
+    private static String simpleName(String className) {
+        return className.substring(className.lastIndexOf('.') + 1);
+    }
+
+    private static String emptyToNull(String value) {
+        return value == null || value.isEmpty() ? null : value;
+    }
+
+    private static String readPackage(Path file) throws IOException {
+        byte[] head = new byte[PACKAGE_SCAN_BYTES];
+        int length = 0;
+        try (InputStream in = Files.newInputStream(file)) {
+            for (int read; length < head.length && (read = in.read(head, length, head.length - length)) != -1; ) {
+                length += read;
+            }
+        }
+        Matcher matcher = PACKAGE.matcher(new String(head, 0, length, StandardCharsets.UTF_8));
+        return matcher.find() ? matcher.group(1) : null;
+    }
+
+    /**
+     * Files of the types the loggers of a file were resolved from, and whether the type of a logger
+     * referenced through another class (Other.LOGGER, getLogger(Other.class)) could not be found,
+     * as it may be found once other files change.
+     */
+    static class Dependencies {
+        private final Set<Path> files = new HashSet<>();
+        private boolean unresolved;
+
+        Set<Path> getFiles() {
+            return Collections.unmodifiableSet(files);
+        }
+
+        boolean isUnresolved() {
+            return unresolved;
+        }
+
+        private void addAll(Dependencies other) {
+            files.addAll(other.files);
+            unresolved |= other.unresolved;
+        }
+    }
+
+    /**
+     * Type solver that does not find any type in a source root with files that cannot be parsed,
+     * instead of failing the lookup of types found in other source roots.
+     */
+    private static class LenientTypeSolver implements TypeSolver {
+        private final TypeSolver delegate;
+
+        LenientTypeSolver(TypeSolver delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public TypeSolver getParent() {
+            return delegate.getParent();
+        }
+
+        @Override
+        public void setParent(TypeSolver parent) {
+            delegate.setParent(parent);
+        }
+
+        @Override
+        public SymbolReference<ReferenceTypeDeclaration> tryToSolveType(String name) {
+            try {
+                return delegate.tryToSolveType(name);
+            } catch (RuntimeException e) {
+                LOGGER.debug("Cannot solve type {} with {}", name, delegate, e);
+                return SymbolReference.unsolved(ReferenceTypeDeclaration.class);
+            }
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.github.logtrail.tools.sourceanalyzer;
+
+import com.github.logtrail.tools.common.PatternBundleWriter;
+import com.google.gson.Gson;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Converts the patterns written to patterns.out.file, either a JSON array or newline delimited JSON,
+ * to a pattern bundle.
+ * <pre>
+ * java -cp source-analyzer-shaded.jar com.github.logtrail.tools.sourceanalyzer.PatternBundleConverter patterns.json patterns.bundle
+ * </pre>
+ */
+public class PatternBundleConverter {
+
+    /**
+     * @return number of converted patterns
+     */
+    public static int convert(Path jsonFile, Path bundleFile) throws IOException {
+        Gson gson = new Gson();
+        //Closing the writer writes the bundle, only done when all patterns were read
+        PatternBundleWriter writer = new PatternBundleWriter(bundleFile);
+        try (Reader reader = Files.newBufferedReader(jsonFile, StandardCharsets.UTF_8)) {
+            JsonReader jsonReader = new JsonReader(reader);
+            //NDJSON is a sequence of top level objects
+            jsonReader.setLenient(true);
+            boolean array = jsonReader.peek() == JsonToken.BEGIN_ARRAY;
+            if (array) {
+                jsonReader.beginArray();
+            }
+            while (array ? jsonReader.hasNext() : jsonReader.peek() != JsonToken.END_DOCUMENT) {
+                LogStatement logStatement = gson.fromJson(jsonReader, LogStatement.class);
+                writer.add(PatternBundleSink.toRecord(logStatement));
+            }
+        }
+        writer.close();
+        return writer.size();
+    }
+
+    public static void main(String args[]) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: PatternBundleConverter <patterns json file> <bundle file>");
+            System.exit(1);
+        }
+        int count = convert(Paths.get(args[0]), Paths.get(args[1]));
+        System.out.println("Converted " + count + " patterns from " + args[0] + " to " + args[1]);
+    }
+}
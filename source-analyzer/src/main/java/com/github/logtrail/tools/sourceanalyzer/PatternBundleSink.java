@@ -0,0 +1,61 @@
+package com.github.logtrail.tools.sourceanalyzer;
+
+import com.github.logtrail.tools.common.PatternBundleWriter;
+import com.github.logtrail.tools.common.PatternRecord;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Writes log statements to a binary pattern bundle that the logstash filter can load instead of
+ * fetching the patterns from elasticsearch. The bundle is written when the sink is closed, and only if
+ * the run completed: the filters reload the bundle when it changes, so the bundle of the last complete
+ * run is kept rather than replaced with the patterns of a run that failed part way.
+ */
+public class PatternBundleSink implements LogStatementSink {
+    private final Path file;
+    private final PatternBundleWriter writer;
+    private boolean completed = false;
+
+    public PatternBundleSink(Path file) {
+        this.file = file;
+        this.writer = new PatternBundleWriter(file);
+    }
+
+    @Override
+    public void write(List<LogStatement> logStatements) {
+        for (LogStatement logStatement : logStatements) {
+            writer.add(toRecord(logStatement));
+        }
+    }
+
+    @Override
+    public void complete() {
+        completed = true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!completed) {
+            System.out.println("Not writing bundle " + file + " as the analysis did not complete");
+            return;
+        }
+        writer.close();
+        System.out.println("Wrote " + writer.size() + " patterns to bundle " + file);
+    }
+
+    static PatternRecord toRecord(LogStatement logStatement) {
+        PatternRecord record = new PatternRecord();
+        record.setId(logStatement.getMessageId());
+        record.setContext(logStatement.getContext());
+        record.setIndexPattern(logStatement.getIndexPattern());
+        record.setLevel(logStatement.getLevel());
+        record.setMethod(logStatement.getMethod());
+        record.setMessageRegEx(logStatement.getMessageRegEx());
+        record.setSegments(logStatement.getSegments());
+        record.setFields(logStatement.getFields());
+        record.setArgs(logStatement.getArgs());
+        return record;
+    }
+}